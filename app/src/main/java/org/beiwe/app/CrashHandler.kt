@@ -11,6 +11,7 @@ import io.sentry.Sentry
 import io.sentry.event.BreadcrumbBuilder
 import org.beiwe.app.networking.PostRequest
 import org.beiwe.app.storage.PersistentData
+import org.beiwe.app.storage.TextFileManager
 
 class CrashHandler(private val errorHandlerContext: Context) : Thread.UncaughtExceptionHandler {
     private val millisecondsUntilRestart = 500
@@ -38,6 +39,11 @@ class CrashHandler(private val errorHandlerContext: Context) : Thread.UncaughtEx
         val restartServicePendingIntent = PendingIntent.getService(errorHandlerContext, 1, restartServiceIntent, PendingIntent.FLAG_ONE_SHOT)
         val alarmService = errorHandlerContext.getSystemService(Context.ALARM_SERVICE) as AlarmManager
         alarmService[AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + millisecondsUntilRestart] = restartServicePendingIntent
+
+        // queued rows, buffered writes and unsealed blocks die with the process, write them out if we can.
+        try { TextFileManager.flushAll() }
+        catch (e: Throwable) { Log.e("CrashHandler", "could not flush data files before exit: " + e.message) }
+
         //exit beiwe
         Process.killProcess(Process.myPid())
         System.exit(10)
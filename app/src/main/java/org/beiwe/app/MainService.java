@@ -18,9 +18,12 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -44,13 +47,18 @@ import org.beiwe.app.listeners.WifiListener;
 import org.beiwe.app.networking.PostRequest;
 import org.beiwe.app.networking.SurveyDownloader;
 import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.SurveyRegistry;
 import org.beiwe.app.storage.TextFileManager;
 import org.beiwe.app.survey.SurveyScheduler;
 import org.beiwe.app.ui.user.LoginActivity;
 import org.beiwe.app.ui.utils.SurveyNotifications;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.sentry.Sentry;
 import io.sentry.android.AndroidSentryClientFactory;
@@ -190,18 +198,21 @@ public class MainService extends Service {
 			this.bluetoothListener = null; }
 	}
 	
+	/* The content observers are given main looper handlers explicitly, these are also started from timer actions,
+	 * which run on the timer action thread. */
+	
 	/** Initializes the sms logger. */
 	public void startSmsSentLogger() {
-		SmsSentLogger smsSentLogger = new SmsSentLogger(new Handler(), appContext);
+		SmsSentLogger smsSentLogger = new SmsSentLogger(new Handler(Looper.getMainLooper()), appContext);
 		this.getContentResolver().registerContentObserver(Uri.parse("content://sms/"), true, smsSentLogger); }
 	
 	public void startMmsSentLogger(){
-		MMSSentLogger mmsMonitor = new MMSSentLogger(new Handler(), appContext);
+		MMSSentLogger mmsMonitor = new MMSSentLogger(new Handler(Looper.getMainLooper()), appContext);
 		this.getContentResolver().registerContentObserver(Uri.parse("content://mms/"), true, mmsMonitor); }
 
 	/** Initializes the call logger. */
 	private void startCallLogger() {
-		CallLogger callLogger = new CallLogger(new Handler(), appContext);
+		CallLogger callLogger = new CallLogger(new Handler(Looper.getMainLooper()), appContext);
 		this.getContentResolver().registerContentObserver(Uri.parse("content://call_log/calls/"), true, callLogger); }
 	
 	/** Initializes the PowerStateListener. 
@@ -233,33 +244,27 @@ public class MainService extends Service {
 	@SuppressWarnings("static-access")
 	public static void registerTimers(Context appContext) {
 		localHandle.timer = new Timer(localHandle);
+		HashMap<String, TimerAction> actions = localHandle.buildTimerActions();
+		synchronized (externalTimerActions) { actions.putAll(externalTimerActions); }
+		timerActions = actions;
+		for (String action : actions.keySet()) { Timer.setAlarmTolerance(action, actions.get(action).alarmToleranceMilliseconds()); }
+		startTimerActionThread();
+		
 		IntentFilter filter = new IntentFilter();
-		filter.addAction( appContext.getString( R.string.turn_accelerometer_off ) );
-		filter.addAction( appContext.getString( R.string.turn_gyroscope_off ));
-		filter.addAction( appContext.getString( R.string.turn_accelerometer_on ) );
-		filter.addAction( appContext.getString( R.string.turn_gyroscope_on ) );
-		filter.addAction( appContext.getString( R.string.turn_bluetooth_off ) );
-		filter.addAction( appContext.getString( R.string.turn_bluetooth_on ) );
-		filter.addAction( appContext.getString( R.string.turn_gps_off ) );
-		filter.addAction( appContext.getString( R.string.turn_gps_on ) );
-		filter.addAction( appContext.getString( R.string.signout_intent ) );
-		filter.addAction( appContext.getString( R.string.voice_recording ) );
-		filter.addAction( appContext.getString( R.string.run_wifi_log ) );
-		filter.addAction( appContext.getString( R.string.encrypt_ambient_audio_file) );
-		filter.addAction( appContext.getString( R.string.upload_data_files_intent ) );
-		filter.addAction( appContext.getString( R.string.create_new_data_files_intent ) );
-		filter.addAction( appContext.getString( R.string.check_for_new_surveys_intent ) );
-		filter.addAction( appContext.getString( R.string.check_for_sms_enabled ) );
-		filter.addAction( appContext.getString( R.string.check_for_calls_enabled ) );
-		filter.addAction( appContext.getString( R.string.check_if_ambient_audio_recording_is_enabled) );
-		filter.addAction( ConnectivityManager.CONNECTIVITY_ACTION );
-		filter.addAction("crashBeiwe");
-		filter.addAction("enterANR");
-		List<String> surveyIds = PersistentData.getSurveyIds();
-		for (String surveyId : surveyIds) { filter.addAction(surveyId); }
+		filter.addAction( Timer.alarmMultiplexerIntent.getAction() );
+		for (String action : actions.keySet()) { filter.addAction(action); }
+		for (String surveyId : SurveyRegistry.get().getSurveyIds()) { filter.addAction(surveyId); }
 		appContext.registerReceiver(localHandle.timerReceiver, filter);
 	}
 	
+	/**Lets a data stream register its own timer action (e.g. turning itself on and off).  The action
+	 * string is added to the timerReceiver's IntentFilter the next time registerTimers runs, and the
+	 * handler then runs whenever a broadcast with that action arrives.
+	 * Registering an action that MainService already handles replaces the built-in handler. */
+	public static void registerTimerAction(String action, TimerAction handler) {
+		synchronized (externalTimerActions) { externalTimerActions.put(action, handler); }
+	}
+	
 	/** Gets, sets, and pushes the FCM token to the backend. */
 	public void initializeFireBaseIDToken () {
 		final String errorMessage =
@@ -446,159 +451,341 @@ public class MainService extends Service {
 
 	public static void cancelSurveyAlarm(String surveyId) { timer.cancelAlarm(new Intent(surveyId)); }
 	
+	/**The handler for a single timerReceiver action.
+	 * rearm runs on the main thread and must do nothing but re-arm alarms; everything else (sensor
+	 * registration, file rotation, Wi-Fi hashing, survey scheduling, SharedPreferences commits) goes in
+	 * run, which is called on the timer action thread. */
+	public static abstract class TimerAction {
+		/** Runs on the main thread before run is dispatched.
+		 * @return the time the action's next alarm will go off, it is recorded with PersistentData.setMostRecentAlarmTime
+		 * so that the alarm can be recovered after a reboot or crash; or 0 if there is nothing to record. */
+		public long rearm(Context appContext, Intent intent) { return 0; }
+		/** Runs on the timer action thread. */
+		public abstract void run(Context appContext, Intent intent);
+		/** How late this action's alarm may go off so that it can share a wake-up with another alarm, see Timer. */
+		public long alarmToleranceMilliseconds() { return 0; }
+	}
+	
+	//action string -> handler, rebuilt by registerTimers.  Survey ids are not in here, they are looked up in the SurveyRegistry.
+	private static volatile HashMap<String, TimerAction> timerActions = new HashMap<String, TimerAction>();
+	//handlers registered through registerTimerAction, merged into timerActions by registerTimers.
+	private static final HashMap<String, TimerAction> externalTimerActions = new HashMap<String, TimerAction>();
+	
+	/* Timer actions run serially on a single background thread, the broadcast is kept open with goAsync()
+	 * until the action finishes or its budget runs out, whichever is first.  The budget is comfortably
+	 * under the 10 second limit after which Android declares a broadcast receiver not responding. */
+	private static final long TIMER_ACTION_BUDGET_MILLISECONDS = 8000L;
+	private static HandlerThread timerActionThread;
+	private static Handler timerActionHandler;
+	private static Handler mainThreadHandler;
+	
+	private static synchronized void startTimerActionThread() {
+		if (timerActionThread != null) { return; }
+		timerActionThread = new HandlerThread("timer_action_thread");
+		timerActionThread.start();
+		timerActionHandler = new Handler(timerActionThread.getLooper());
+		mainThreadHandler = new Handler(Looper.getMainLooper());
+	}
+	
 	/**The timerReceiver is an Android BroadcastReceiver that listens for our timer events to trigger,
-	 * and then runs the appropriate code for that trigger. 
-	 * Note: every condition has a return statement at the end; this is because the trigger survey notification
-	 * action requires a fairly expensive dive into PersistantData JSON unpacking.*/
+	 * and then runs the appropriate code for that trigger.
+	 * Actions are dispatched with a single lookup in timerActions; anything else is checked against the
+	 * survey ids, which is a hash set lookup in the SurveyRegistry.
+	 * When the Timer's multiplexed alarm goes off every event it hands back is run in the same way.
+	 * On the main thread we only re-arm alarms, the actions themselves run on the timer action thread. */
 	private BroadcastReceiver timerReceiver = new BroadcastReceiver() {
 		@SuppressLint("LongLogTag")
-		@Override public void onReceive(Context appContext, Intent intent) {
+		@Override public void onReceive(final Context appContext, final Intent intent) {
 			Log.d("BackgroundService - timers", "Received broadcast: " + intent.toString() );
-			TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " Received Broadcast: " + intent.toString() );
 			String broadcastAction = intent.getAction();
-
-			/** For GPS and Accelerometer the failure modes are:
-			 * 1. If a recording event is triggered and followed by Doze being enabled then Beiwe will record until the Doze period ends.
-			 * 2. If, after Doze ends, the timers trigger out of order Beiwe ceaces to record and triggers a new recording event in the future. */
-
-			/** Disable active sensor */
-			if (broadcastAction.equals( appContext.getString(R.string.turn_accelerometer_off) ) ) {
+			if (broadcastAction == null) { return; }
+			
+			List<Intent> intents;
+			if ( broadcastAction.equals(Timer.alarmMultiplexerIntent.getAction()) ) { intents = timer.takeDueAlarms(); }
+			else { intents = Collections.singletonList(intent); }
+			
+			final ArrayList<Intent> dueIntents = new ArrayList<Intent>(intents.size());
+			final ArrayList<TimerAction> dueActions = new ArrayList<TimerAction>(intents.size());
+			final ArrayList<Long> nextAlarmTimes = new ArrayList<Long>(intents.size());
+			for (Intent dueIntent : intents) {
+				TimerAction action = timerActions.get(dueIntent.getAction());
+				//checks if the action is the id of a survey, if so pop up the notification for that survey, schedule the next alarm
+				if ( action == null && !SurveyRegistry.get().contains( dueIntent.getAction() ) ) { continue; }
+				dueIntents.add(dueIntent);
+				dueActions.add(action);
+				nextAlarmTimes.add( (action == null) ? 0 : action.rearm(appContext, dueIntent) );
+			}
+			if (dueIntents.isEmpty()) { return; }
+			
+			final PendingResult pendingResult = goAsync();
+			final AtomicBoolean finished = new AtomicBoolean(false);
+			final Runnable budgetExpired = new Runnable() {
+				@Override public void run() {
+					if ( finished.compareAndSet(false, true) ) {
+						Log.w("BackgroundService - timers", "timer actions exceeded their budget of " + TIMER_ACTION_BUDGET_MILLISECONDS + "ms");
+						pendingResult.finish(); }
+				} };
+			mainThreadHandler.postDelayed(budgetExpired, TIMER_ACTION_BUDGET_MILLISECONDS);
+			
+			timerActionHandler.post(new Runnable() {
+				@Override public void run() {
+					try {
+						for (int i = 0; i < dueIntents.size(); i++) {
+							runTimerAction(appContext, dueIntents.get(i), dueActions.get(i), nextAlarmTimes.get(i));
+						}
+					}
+					finally {
+						mainThreadHandler.removeCallbacks(budgetExpired);
+						if ( finished.compareAndSet(false, true) ) { pendingResult.finish(); }
+					}
+				} } );
+		}
+	};
+	
+	/** Runs one timer action on the timer action thread, and records how long it took. */
+	private static void runTimerAction(Context appContext, Intent intent, TimerAction action, long nextAlarmTime) {
+		String broadcastAction = intent.getAction();
+		long start = SystemClock.elapsedRealtime();
+		Trace.beginSection(traceSectionName(broadcastAction));
+		try {
+			TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " Received Broadcast: " + intent.toString() );
+			//record the system time that the next alarm is supposed to go off at, so that we can recover in the event of a reboot or crash.
+			if (nextAlarmTime > 0) { PersistentData.setMostRecentAlarmTime(broadcastAction, nextAlarmTime); }
+			if (action != null) { action.run(appContext, intent); }
+			else {
+//				Log.i("MAIN SERVICE", "new notification: " + broadcastAction);
+				SurveyNotifications.displaySurveyNotification(appContext, broadcastAction);
+				SurveyScheduler.scheduleSurvey(broadcastAction);
+			}
+		}
+		finally {
+			Trace.endSection();
+			long duration = SystemClock.elapsedRealtime() - start;
+			Log.d("BackgroundService - timers", broadcastAction + " took " + duration + "ms");
+			// only slow actions go to the debug log, an encrypted write per alarm is the kind of work we are cutting.
+			if (duration > TIMER_ACTION_BUDGET_MILLISECONDS) {
+				TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " timer action " + broadcastAction
+						+ " took " + duration + "ms, over its budget of " + TIMER_ACTION_BUDGET_MILLISECONDS + "ms");
+			}
+		}
+	}
+	
+	/** @return the broadcast action as a systrace section name, which may be at most 127 characters. */
+	private static String traceSectionName(String broadcastAction) {
+		String name = String.valueOf(broadcastAction);
+		return name.length() <= 127 ? name : name.substring(0, 127);
+	}
+	
+	/**Builds the handlers for every timer action MainService owns.  The resource strings are looked up
+	 * once here rather than on every broadcast.  Handlers read the listener fields when they run, so this
+	 * can be built before doSetup creates the listeners. */
+	private HashMap<String, TimerAction> buildTimerActions() {
+		HashMap<String, TimerAction> actions = new HashMap<String, TimerAction>();
+		
+		/** For GPS and Accelerometer the failure modes are:
+		 * 1. If a recording event is triggered and followed by Doze being enabled then Beiwe will record until the Doze period ends.
+		 * 2. If, after Doze ends, the timers trigger out of order Beiwe ceaces to record and triggers a new recording event in the future. */
+		
+		/** Disable active sensor */
+		actions.put(getString(R.string.turn_accelerometer_off), new TimerAction() {
+			@Override public void run(Context appContext, Intent intent) {
 				accelerometerListener.turn_off();
-				return; }
-			if (broadcastAction.equals( appContext.getString(R.string.turn_gyroscope_off) ) ) {
+			} } );
+		actions.put(getString(R.string.turn_gyroscope_off), new TimerAction() {
+			@Override public void run(Context appContext, Intent intent) {
 				gyroscopeListener.turn_off();
-				return; }
-			if (broadcastAction.equals( appContext.getString(R.string.turn_gps_off) ) ) {
+			} } );
+		actions.put(getString(R.string.turn_gps_off), new TimerAction() {
+			@Override public void run(Context appContext, Intent intent) {
 				if ( PermissionHandler.checkGpsPermissions(appContext) ) { gpsListener.turn_off(); }
-				return; }
-			
-			/** Enable active sensors, reset timers. */
-			//Accelerometer. We automatically have permissions required for accelerometer.
-			if (broadcastAction.equals( appContext.getString(R.string.turn_accelerometer_on) ) ) {
+			} } );
+		
+		/** Enable active sensors, reset timers. */
+		//Accelerometer. We automatically have permissions required for accelerometer.
+		actions.put(getString(R.string.turn_accelerometer_on), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				if ( !PersistentData.getAccelerometerEnabled() ) { return 0; }
+				//start both the sensor-off-action timer, and the next sensor-on-timer.
+				timer.setupExactSingleAlarm(PersistentData.getAccelerometerOnDurationMilliseconds(), Timer.accelerometerOffIntent);
+				return timer.setupExactSingleAlarm(PersistentData.getAccelerometerOffDurationMilliseconds() + PersistentData.getAccelerometerOnDurationMilliseconds(), Timer.accelerometerOnIntent);
+			}
+			@Override public void run(Context appContext, Intent intent) {
 				if ( !PersistentData.getAccelerometerEnabled() ) { Log.e("BackgroundService Listener", "invalid Accelerometer on received"); return; }
 				accelerometerListener.turn_on();
+			} } );
+		//Gyroscope. Almost identical logic to accelerometer above.
+		actions.put(getString(R.string.turn_gyroscope_on), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				if ( !PersistentData.getGyroscopeEnabled() || !gyroscopeListener.exists ) { return 0; }
 				//start both the sensor-off-action timer, and the next sensor-on-timer.
-				timer.setupExactSingleAlarm(PersistentData.getAccelerometerOnDurationMilliseconds(), Timer.accelerometerOffIntent);
-				long alarmTime = timer.setupExactSingleAlarm(PersistentData.getAccelerometerOffDurationMilliseconds() + PersistentData.getAccelerometerOnDurationMilliseconds(), Timer.accelerometerOnIntent);
-				//record the system time that the next alarm is supposed to go off at, so that we can recover in the event of a reboot or crash. 
-				PersistentData.setMostRecentAlarmTime(getString(R.string.turn_accelerometer_on), alarmTime );
-				return; }
-			//Gyroscope. Almost identical logic to accelerometer above.
-			if (broadcastAction.equals( appContext.getString(R.string.turn_gyroscope_on) ) ) {
+				timer.setupExactSingleAlarm(PersistentData.getGyroscopeOnDurationMilliseconds(), Timer.gyroscopeOffIntent);
+				return timer.setupExactSingleAlarm(PersistentData.getGyroscopeOffDurationMilliseconds() + PersistentData.getGyroscopeOnDurationMilliseconds(), Timer.gyroscopeOnIntent);
+			}
+			@Override public void run(Context appContext, Intent intent) {
 				if ( !PersistentData.getGyroscopeEnabled() || !gyroscopeListener.exists ) { Log.e("BackgroundService Listener", "invalid Gyroscope on received"); return; }
 				gyroscopeListener.turn_on();
-				//start both the sensor-off-action timer, and the next sensor-on-timer.
-				timer.setupExactSingleAlarm(PersistentData.getGyroscopeOnDurationMilliseconds(), Timer.gyroscopeOffIntent);
-				long alarmTime = timer.setupExactSingleAlarm(PersistentData.getGyroscopeOffDurationMilliseconds() + PersistentData.getGyroscopeOnDurationMilliseconds(), Timer.gyroscopeOnIntent);
-				//record the system time that the next alarm is supposed to go off at, so that we can recover in the event of a reboot or crash.
-				PersistentData.setMostRecentAlarmTime(getString(R.string.turn_gyroscope_on), alarmTime );
-				return;
+			} } );
+		//GPS. Almost identical logic to accelerometer above.
+		actions.put(getString(R.string.turn_gps_on), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				if ( !PersistentData.getGpsEnabled() ) { return 0; }
+				timer.setupExactSingleAlarm(PersistentData.getGpsOnDurationMilliseconds(), Timer.gpsOffIntent);
+				return timer.setupExactSingleAlarm(PersistentData.getGpsOnDurationMilliseconds() + PersistentData.getGpsOffDurationMilliseconds(), Timer.gpsOnIntent);
 			}
-			//GPS. Almost identical logic to accelerometer above.
-			if (broadcastAction.equals( appContext.getString(R.string.turn_gps_on) ) ) {
+			@Override public void run(Context appContext, Intent intent) {
 				if ( !PersistentData.getGpsEnabled() ) { Log.e("BackgroundService Listener", "invalid GPS on received"); return; }
 				gpsListener.turn_on();
-				timer.setupExactSingleAlarm(PersistentData.getGpsOnDurationMilliseconds(), Timer.gpsOffIntent);
-				long alarmTime = timer.setupExactSingleAlarm(PersistentData.getGpsOnDurationMilliseconds() + PersistentData.getGpsOffDurationMilliseconds(), Timer.gpsOnIntent);
-				PersistentData.setMostRecentAlarmTime(getString(R.string.turn_gps_on), alarmTime );
-				return; }
-			//run a wifi scan.  Most similar to GPS, but without an off-timer.
-			if (broadcastAction.equals( appContext.getString(R.string.run_wifi_log) ) ) {
+			} } );
+		//run a wifi scan.  Most similar to GPS, but without an off-timer.
+		actions.put(getString(R.string.run_wifi_log), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				if ( !PersistentData.getWifiEnabled() ) { return 0; }
+				return timer.setupExactSingleAlarm(PersistentData.getWifiLogFrequencyMilliseconds(), Timer.wifiLogIntent);
+			}
+			@Override public void run(Context appContext, Intent intent) {
 				if ( !PersistentData.getWifiEnabled() ) { Log.e("BackgroundService Listener", "invalid WiFi scan received"); return; }
 				if ( PermissionHandler.checkWifiPermissions(appContext) ) { WifiListener.scanWifi(); }
 				else { TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " user has not provided permission for Wifi."); }
-				long alarmTime = timer.setupExactSingleAlarm(PersistentData.getWifiLogFrequencyMilliseconds(), Timer.wifiLogIntent);
-				PersistentData.setMostRecentAlarmTime( getString(R.string.run_wifi_log), alarmTime );
-				return; }
-
-			// Encrypt the current ambient audio file
-			if (broadcastAction.equals(appContext.getString(R.string.encrypt_ambient_audio_file))) {
+			}
+			@Override public long alarmToleranceMilliseconds() { return 30 * 1000L; }
+			} );
+		
+		// Encrypt the current ambient audio file
+		actions.put(getString(R.string.encrypt_ambient_audio_file), new TimerAction() {
+			@Override public void run(Context appContext, Intent intent) {
 				AmbientAudioListener.encryptAmbientAudioFile();
-				return;
 			}
-
-			/** Bluetooth timers are unlike GPS and Accelerometer because it uses an absolute-point-in-time as a trigger, and therefore we don't need to store most-recent-timer state.
-			 * The Bluetooth-on action sets the corresponding Bluetooth-off timer, the Bluetooth-off action sets the next Bluetooth-on timer.*/
-			if (broadcastAction.equals( appContext.getString(R.string.turn_bluetooth_on) ) ) {
+			@Override public long alarmToleranceMilliseconds() { return 10 * 1000L; }
+			} );
+		
+		/** Bluetooth timers are unlike GPS and Accelerometer because it uses an absolute-point-in-time as a trigger, and therefore we don't need to store most-recent-timer state.
+		 * The Bluetooth-on action sets the corresponding Bluetooth-off timer, the Bluetooth-off action sets the next Bluetooth-on timer.*/
+		actions.put(getString(R.string.turn_bluetooth_on), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				if ( PersistentData.getBluetoothEnabled() ) { timer.setupExactSingleAlarm(PersistentData.getBluetoothOnDurationMilliseconds(), Timer.bluetoothOffIntent); }
+				return 0;
+			}
+			@Override public void run(Context appContext, Intent intent) {
 				if ( !PersistentData.getBluetoothEnabled() ) { Log.e("BackgroundService Listener", "invalid Bluetooth on received"); return; }
 				if ( PermissionHandler.checkBluetoothPermissions(appContext) ) {
 					if (bluetoothListener != null) bluetoothListener.enableBLEScan(); }
 				else { TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " user has not provided permission for Bluetooth."); }
-				timer.setupExactSingleAlarm(PersistentData.getBluetoothOnDurationMilliseconds(), Timer.bluetoothOffIntent);
-				return; }
-			if (broadcastAction.equals( appContext.getString(R.string.turn_bluetooth_off) ) ) {
+			} } );
+		actions.put(getString(R.string.turn_bluetooth_off), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				timer.setupExactSingleAbsoluteTimeAlarm(PersistentData.getBluetoothTotalDurationMilliseconds(), PersistentData.getBluetoothGlobalOffsetMilliseconds(), Timer.bluetoothOnIntent);
+				return 0;
+			}
+			@Override public void run(Context appContext, Intent intent) {
 				if ( PermissionHandler.checkBluetoothPermissions(appContext) ) {
 					if ( bluetoothListener != null) bluetoothListener.disableBLEScan(); }
-				timer.setupExactSingleAbsoluteTimeAlarm(PersistentData.getBluetoothTotalDurationMilliseconds(), PersistentData.getBluetoothGlobalOffsetMilliseconds(), Timer.bluetoothOnIntent);
-				return; }
-			
-			//starts a data upload attempt.
-			if (broadcastAction.equals( appContext.getString(R.string.upload_data_files_intent) ) ) {
-				PostRequest.uploadAllFiles();
+			} } );
+		
+		//starts a data upload attempt.
+		actions.put(getString(R.string.upload_data_files_intent), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
 				timer.setupExactSingleAlarm(PersistentData.getUploadDataFilesFrequencyMilliseconds(), Timer.uploadDatafilesIntent);
-				return; }
-			//creates new data files
-			if (broadcastAction.equals( appContext.getString(R.string.create_new_data_files_intent) ) ) {
-				TextFileManager.makeNewFilesForEverything();
+				return 0;
+			}
+			@Override public void run(Context appContext, Intent intent) {
+				PostRequest.uploadAllFiles();
+			}
+			@Override public long alarmToleranceMilliseconds() { return 60 * 1000L; }
+			} );
+		//creates new data files
+		actions.put(getString(R.string.create_new_data_files_intent), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
 				timer.setupExactSingleAlarm(PersistentData.getCreateNewDataFilesFrequencyMilliseconds(), Timer.createNewDataFilesIntent);
-                PostRequest.uploadAllFiles();
-				return; }
-			//Downloads the most recent survey questions and schedules the surveys.
-			if (broadcastAction.equals( appContext.getString(R.string.check_for_new_surveys_intent))) {
-				SurveyDownloader.downloadSurveys(getApplicationContext(), null);
+				return 0;
+			}
+			@Override public void run(Context appContext, Intent intent) {
+				TextFileManager.makeNewFilesForEverything();
+				PostRequest.uploadAllFiles();
+			}
+			@Override public long alarmToleranceMilliseconds() { return 60 * 1000L; }
+			} );
+		//Downloads the most recent survey questions and schedules the surveys.
+		actions.put(getString(R.string.check_for_new_surveys_intent), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
 				timer.setupExactSingleAlarm(PersistentData.getCheckForNewSurveysFrequencyMilliseconds(), Timer.checkForNewSurveysIntent);
-				return; }
-			// Signs out the user. (does not set up a timer, that is handled in activity and sign-in logic) 
-			if (broadcastAction.equals( appContext.getString(R.string.signout_intent) ) ) {
+				return 0;
+			}
+			@Override public void run(Context appContext, Intent intent) {
+				SurveyDownloader.downloadSurveys(getApplicationContext(), null);
+			}
+			@Override public long alarmToleranceMilliseconds() { return 60 * 1000L; }
+			} );
+		// Signs out the user. (does not set up a timer, that is handled in activity and sign-in logic) 
+		actions.put(getString(R.string.signout_intent), new TimerAction() {
+			@Override public void run(Context appContext, Intent intent) {
 				PersistentData.logout();
 				Intent loginPage = new Intent(appContext, LoginActivity.class);
 				loginPage.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 				appContext.startActivity(loginPage);
-				return; }
-
-			if (broadcastAction.equals( appContext.getString(R.string.check_for_sms_enabled) ) ) {
+			} } );
+		
+		actions.put(getString(R.string.check_for_sms_enabled), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				if ( !PermissionHandler.confirmTexts(appContext) && PersistentData.getTextsEnabled() ) { timer.setupExactSingleAlarm(30000L, Timer.checkForSMSEnabled); }
+				return 0;
+			}
+			@Override public void run(Context appContext, Intent intent) {
 				if ( PermissionHandler.confirmTexts(appContext) ) { startSmsSentLogger(); startMmsSentLogger(); }
-				else if (PersistentData.getTextsEnabled() ) { timer.setupExactSingleAlarm(30000L, Timer.checkForSMSEnabled); }
 			}
-			if (broadcastAction.equals( appContext.getString(R.string.check_for_calls_enabled) ) ) {
+			@Override public long alarmToleranceMilliseconds() { return 10 * 1000L; }
+			} );
+		actions.put(getString(R.string.check_for_calls_enabled), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				if ( !PermissionHandler.confirmCalls(appContext) && PersistentData.getCallsEnabled() ) { timer.setupExactSingleAlarm(30000L, Timer.checkForCallsEnabled); }
+				return 0;
+			}
+			@Override public void run(Context appContext, Intent intent) {
 				if ( PermissionHandler.confirmCalls(appContext) ) { startCallLogger(); }
-				else if (PersistentData.getCallsEnabled() ) { timer.setupExactSingleAlarm(30000L, Timer.checkForCallsEnabled); }
 			}
-
-			if (broadcastAction.equals( appContext.getString(R.string.check_if_ambient_audio_recording_is_enabled) ) ) {
+			@Override public long alarmToleranceMilliseconds() { return 10 * 1000L; }
+			} );
+		
+		actions.put(getString(R.string.check_if_ambient_audio_recording_is_enabled), new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				if ( !PermissionHandler.confirmAmbientAudioCollection(appContext) && PersistentData.getAmbientAudioCollectionIsEnabled() ) {
+					timer.setupExactSingleAlarm(10000L, Timer.checkIfAmbientAudioRecordingIsEnabled); }
+				return 0;
+			}
+			@Override public void run(Context appContext, Intent intent) {
 				if ( PermissionHandler.confirmAmbientAudioCollection(appContext) ) { AmbientAudioListener.startRecording(appContext); }
-				else if (PersistentData.getAmbientAudioCollectionIsEnabled() ) { timer.setupExactSingleAlarm(10000L, Timer.checkIfAmbientAudioRecordingIsEnabled); }
 			}
-
-			//checks if the action is the id of a survey (expensive), if so pop up the notification for that survey, schedule the next alarm
-			if ( PersistentData.getSurveyIds().contains( broadcastAction ) ) {
-//				Log.i("MAIN SERVICE", "new notification: " + broadcastAction);
-				SurveyNotifications.displaySurveyNotification(appContext, broadcastAction);
-				SurveyScheduler.scheduleSurvey(broadcastAction);
-				return; }
-
-			if ( PersistentData.isRegistered() && broadcastAction.equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
+			@Override public long alarmToleranceMilliseconds() { return 10 * 1000L; }
+			} );
+		
+		actions.put(ConnectivityManager.CONNECTIVITY_ACTION, new TimerAction() {
+			@Override public void run(Context appContext, Intent intent) {
+				if ( !PersistentData.isRegistered() ) { return; }
 				NetworkInfo networkInfo = intent.getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO);
-				if(networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
-					PostRequest.uploadAllFiles();
-					return;
-				}
-			}
-
-			//this is a special action that will only run if the app device is in debug mode.
-			if (broadcastAction.equals("crashBeiwe") && BuildConfig.APP_IS_BETA) {
-				throw new NullPointerException("beeeeeoooop."); }
-			//this is a special action that will only run if the app device is in debug mode.
-			if (broadcastAction.equals("enterANR") && BuildConfig.APP_IS_BETA) {
+				if(networkInfo.getType() == ConnectivityManager.TYPE_WIFI) { PostRequest.uploadAllFiles(); }
+			} } );
+		
+		//this is a special action that will only run if the app device is in debug mode.
+		actions.put("crashBeiwe", new TimerAction() {
+			@Override public void run(Context appContext, Intent intent) {
+				if (BuildConfig.APP_IS_BETA) { throw new NullPointerException("beeeeeoooop."); }
+			} } );
+		//this is a special action that will only run if the app device is in debug mode.
+		//It exists to block the main thread, so unlike every other action its work happens in rearm.
+		actions.put("enterANR", new TimerAction() {
+			@Override public long rearm(Context appContext, Intent intent) {
+				if (!BuildConfig.APP_IS_BETA) { return 0; }
 				try {
 					sleep(100000);
 				}
 				catch(InterruptedException ie) {
 					ie.printStackTrace();
 				}
+				return 0;
 			}
-		}
-	};
+			@Override public void run(Context appContext, Intent intent) { }
+			} );
+		return actions;
+	}
 	
 	/*##########################################################################################
 	############## code related to onStartCommand and binding to an activity ###################
@@ -653,10 +840,12 @@ public class MainService extends Service {
 	@Override public void onDestroy() { //Log.w("BackgroundService", "BackgroundService was destroyed.");
 		//note: this does not run when the service is killed in a task manager, OR when the stopService() function is called from debugActivity.
 		TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis()+" "+"BackgroundService was destroyed.");
+		TextFileManager.flushAll();
 		restartService();
 		super.onDestroy(); }
 	@Override public void onLowMemory() { //Log.w("BackroundService onLowMemory", "Low memory conditions encountered");
 		TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis()+" "+"onLowMemory called.");
+		TextFileManager.flushAll();
 		restartService(); }
 	
 	/** Sets a timer that starts the service if it is not running in ten seconds. */
@@ -7,11 +7,24 @@ import android.content.Intent;
 
 import org.beiwe.app.storage.PersistentData;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
 
 /** The Timer class provides a meeans of setting various timers.  These are used by the BackgroundService
  * for devices that must be turned on/off, and timing the user to automatically logout after a period of time.
  * This class includes all the Intents and IntentFilters we for trigged broadcasts.
+ * 
+ * All timer events share a single AlarmManager alarm.  Pending events sit in a queue ordered by the latest
+ * time each one may run (its trigger time plus its tolerance) and only the head of that queue is armed.
+ * When that alarm goes off MainService takes every event that is due, or will be due within the slack
+ * window, and runs them together, so events that are close together cost one wake-up instead of several.
+ * The queue is held in memory: if the process dies MainService.startTimers finds the alarms unset and
+ * recreates them, exactly as it does after a reboot.
  * @author Eli, Dor */
 public class Timer {
 	private AlarmManager alarmManager;
@@ -38,6 +51,26 @@ public class Timer {
 	public static Intent checkForSMSEnabled;
 	public static Intent checkForCallsEnabled;
 	public static Intent checkIfAmbientAudioRecordingIsEnabled;
+	public static Intent alarmMultiplexerIntent;
+	
+	private static class ScheduledAlarm {
+		final Intent intent;
+		final long triggerTime;
+		final long deadline;  // triggerTime plus the action's tolerance
+		ScheduledAlarm(Intent intent, long triggerTime, long deadline) {
+			this.intent = intent;
+			this.triggerTime = triggerTime;
+			this.deadline = deadline;
+		}
+	}
+	
+	// all access to the queue and the maps is synchronized on alarmQueue.
+	private static final PriorityQueue<ScheduledAlarm> alarmQueue = new PriorityQueue<ScheduledAlarm>(32, new Comparator<ScheduledAlarm>() {
+		@Override public int compare(ScheduledAlarm a, ScheduledAlarm b) { return a.deadline < b.deadline ? -1 : (a.deadline == b.deadline ? 0 : 1); }
+	} );
+	private static final HashMap<String, ScheduledAlarm> scheduledAlarms = new HashMap<String, ScheduledAlarm>();
+	private static final HashMap<String, Long> alarmTolerances = new HashMap<String, Long>();
+	private static long armedTime = 0;  // the time the multiplexed alarm is currently set for, 0 if it is not set
 	
 	
 	// Constructor
@@ -66,6 +99,8 @@ public class Timer {
 		checkForSMSEnabled = setupIntent(appContext.getString(R.string.check_for_sms_enabled));
 		checkForCallsEnabled = setupIntent(appContext.getString(R.string.check_for_calls_enabled));
 		checkIfAmbientAudioRecordingIsEnabled = setupIntent(appContext.getString(R.string.check_if_ambient_audio_recording_is_enabled));
+		
+		alarmMultiplexerIntent = setupIntent(appContext.getString(R.string.alarm_multiplexer_intent));
 	}
 	
 	/* ######################################################################
@@ -87,8 +122,7 @@ public class Timer {
 	 * @return a long of the system time in milliseconds that the alarm was set for. */
 	public Long setupExactSingleAlarm(Long milliseconds, Intent intentToBeBroadcast) {
 		Long triggerTime = System.currentTimeMillis() + milliseconds;
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intentToBeBroadcast, 0);
-		setExactAlarm(AlarmManager.RTC_WAKEUP, triggerTime, pendingIntent);
+		scheduleAlarm(intentToBeBroadcast, triggerTime);
 		return triggerTime;
 	}
 	
@@ -103,8 +137,7 @@ public class Timer {
 		if (nextTriggerTime < currentTime) {
 			nextTriggerTime += period;
 		}
-		PendingIntent pendingTimerIntent = PendingIntent.getBroadcast(appContext, 0, intentToBeBroadcast, 0);
-		setExactAlarm(AlarmManager.RTC_WAKEUP, nextTriggerTime, pendingTimerIntent);
+		scheduleAlarm(intentToBeBroadcast, nextTriggerTime);
 	}
 	
 	public void startSurveyAlarm(String surveyId, Calendar alarmTime) {
@@ -116,15 +149,75 @@ public class Timer {
 	/**Takes a specially prepared intent and sets it to go off at the day and time provided
 	 * @param intentToBeBroadcast an intent that has been prepared by the startWeeklyAlarm function.*/
 	public void setupSurveyAlarm(String surveyId, Intent intentToBeBroadcast, Calendar alarmTime) {
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intentToBeBroadcast, 0);
 		long nextTriggerTime = alarmTime.getTimeInMillis();
 //		triggerAtMillis = System.currentTimeMillis() + 15000; //hax, debug code.
 //		long timeTillFire = nextTriggerTime - System.currentTimeMillis();
 		// Log.i("Timer.java", "next alarm triggers in = " + timeTillFire / 1000 + " seconds.");
-		setExactAlarm(AlarmManager.RTC_WAKEUP, nextTriggerTime, pendingIntent);
+		scheduleAlarm(intentToBeBroadcast, nextTriggerTime);
 		PersistentData.setMostRecentSurveyAlarmTime(surveyId, nextTriggerTime);
 	}
 	
+	/* ##################################################################################
+	 * ############################ Alarm Multiplexing ##################################
+	 * ################################################################################*/
+	
+	/**Declares how late the event for an action may run, so that it can share a wake-up with another event.
+	 * Events with no declared tolerance run on time.  MainService sets these from its TimerActions. */
+	public static void setAlarmTolerance(String action, long toleranceMilliseconds) {
+		synchronized (alarmQueue) { alarmTolerances.put(action, toleranceMilliseconds); }
+	}
+	
+	/** Adds an event to the queue, replacing any pending event for the same action. */
+	private void scheduleAlarm(Intent intentToBeBroadcast, long triggerTime) {
+		String action = intentToBeBroadcast.getAction();
+		synchronized (alarmQueue) {
+			removeScheduledAlarm(action);
+			Long tolerance = alarmTolerances.get(action);
+			ScheduledAlarm alarm = new ScheduledAlarm(intentToBeBroadcast, triggerTime, triggerTime + (tolerance == null ? 0 : tolerance));
+			alarmQueue.add(alarm);
+			scheduledAlarms.put(action, alarm);
+			armNextAlarm();
+		}
+	}
+	
+	/**Called by MainService when the multiplexed alarm goes off.  Removes every event that is due or will be
+	 * due within the slack window, and arms the alarm for whatever is left.
+	 * @return the Intents of the events to run, in trigger time order. */
+	public List<Intent> takeDueAlarms() {
+		long cutoff = System.currentTimeMillis() + PersistentData.getAlarmSlackMilliseconds();
+		ArrayList<ScheduledAlarm> due = new ArrayList<ScheduledAlarm>();
+		synchronized (alarmQueue) {
+			for (ScheduledAlarm alarm : alarmQueue) {
+				if (alarm.triggerTime <= cutoff) { due.add(alarm); } }
+			for (ScheduledAlarm alarm : due) { removeScheduledAlarm(alarm.intent.getAction()); }
+			armedTime = 0;  // the alarm that just went off is no longer set
+			armNextAlarm();
+		}
+		Collections.sort(due, new Comparator<ScheduledAlarm>() {
+			@Override public int compare(ScheduledAlarm a, ScheduledAlarm b) { return a.triggerTime < b.triggerTime ? -1 : (a.triggerTime == b.triggerTime ? 0 : 1); }
+		} );
+		ArrayList<Intent> intents = new ArrayList<Intent>(due.size());
+		for (ScheduledAlarm alarm : due) { intents.add(alarm.intent); }
+		return intents;
+	}
+	
+	/** must be called while synchronized on alarmQueue. */
+	private static void removeScheduledAlarm(String action) {
+		ScheduledAlarm existing = scheduledAlarms.remove(action);
+		if (existing != null) { alarmQueue.remove(existing); }
+	}
+	
+	/** Sets the one AlarmManager alarm for the head of the queue, must be called while synchronized on alarmQueue. */
+	private void armNextAlarm() {
+		ScheduledAlarm next = alarmQueue.peek();
+		long nextTime = (next == null) ? 0 : next.deadline;
+		if (nextTime == armedTime) { return; }
+		PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, alarmMultiplexerIntent, 0);
+		if (next == null) { alarmManager.cancel(pendingIntent); }
+		else { setExactAlarm(AlarmManager.RTC_WAKEUP, nextTime, pendingIntent); }
+		armedTime = nextTime;
+	}
+	
 	/* ##################################################################################
 	 * ############################ Other Utility Functions #############################
 	 * ################################################################################*/
@@ -155,19 +248,19 @@ public class Timer {
 	/**Cancels an alarm, does not return any info about whether the alarm existed.
 	 * @param intentToBeBroadcast an Intent identifying the alarm to cancel. */
 	public void cancelAlarm(Intent intentToBeBroadcast) {
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intentToBeBroadcast, 0);
-		alarmManager.cancel(pendingIntent);
+		synchronized (alarmQueue) {
+			removeScheduledAlarm(intentToBeBroadcast.getAction());
+			armNextAlarm();
+		}
+		// alarms set by versions of the app before alarms were multiplexed are still individual AlarmManager alarms.
+		PendingIntent legacyPendingIntent = PendingIntent.getBroadcast(appContext, 0, intentToBeBroadcast, PendingIntent.FLAG_NO_CREATE);
+		if (legacyPendingIntent != null) { alarmManager.cancel(legacyPendingIntent); }
 	}
 	
 	/**Checks if an alarm is set.
 	 * @param intent an Intent identifying the alarm to check.
 	 * @return Returns TRUE if there is an alarm set matching that intent; otherwise false. */
 	public Boolean alarmIsSet(Intent intent) {
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intent, PendingIntent.FLAG_NO_CREATE);
-		if (pendingIntent == null) {
-			return false;
-		} else {
-			return true;
-		}
+		synchronized (alarmQueue) { return scheduledAlarms.containsKey(intent.getAction()); }
 	}
 }
\ No newline at end of file
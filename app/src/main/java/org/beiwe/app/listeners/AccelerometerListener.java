@@ -4,13 +4,14 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.util.Log;
 
+import org.beiwe.app.storage.CsvRowEncoder;
 import org.beiwe.app.storage.TextFileManager;
 
-public class AccelerometerListener implements SensorEventListener{
+public class AccelerometerListener implements SensorEventListener2, SensorSampleBuffer.Owner {
 	public static String header = "timestamp,accuracy,x,y,z";
 	
 	private SensorManager accelSensorManager;
@@ -22,7 +23,21 @@ public class AccelerometerListener implements SensorEventListener{
 	private Boolean exists = null;
 	private Boolean enabled = null;
 	
-	private String accuracy;
+	private int accuracy;
+	
+	/** timestamp,accuracy,x,y,z, floats in Java's default float formatting.  Package-private for ImuRowFormatTest. */
+	static final SensorSampleBuffer.RowFormat rowFormat = new SensorSampleBuffer.RowFormat() {
+		@Override public void appendRow(CsvRowEncoder row, long timestamp, int accuracy, float x, float y, float z) {
+			row.append(timestamp).delimiter();
+			SensorSampleBuffer.appendAccuracy(row, accuracy);
+			row.delimiter().append(x).delimiter().append(y).delimiter().append(z);
+		} };
+	private static final SensorSampleBuffer.Pool bufferPool = new SensorSampleBuffer.Pool(8, rowFormat);
+	private SensorSampleBuffer buffer = null;
+	
+	// see SensorBatching, 0 when samples are delivered as they are taken.
+	private int reportLatencyMicroseconds = 0;
+	private boolean flushPending = false;
 
 	/** Returns a boolean of whether the accelerometer is recording */
 	public Boolean check_status(){ 
@@ -36,7 +51,8 @@ public class AccelerometerListener implements SensorEventListener{
 	public AccelerometerListener(Context applicationContext){
 		this.appContext = applicationContext;
 		this.pkgManager = appContext.getPackageManager();
-		this.accuracy = "unknown";
+		this.accuracy = SensorSampleBuffer.ACCURACY_UNKNOWN;
+		SensorSampleBuffer.register(this);
 		this.exists = pkgManager.hasSystemFeature(PackageManager.FEATURE_SENSOR_ACCELEROMETER);
 		
 		if (this.exists) {
@@ -55,28 +71,57 @@ public class AccelerometerListener implements SensorEventListener{
 	} }
 	 
 	public synchronized void turn_on() {
-		if ( !accelSensorManager.registerListener(this, accelSensor, SensorManager.SENSOR_DELAY_NORMAL) ) {
+		// if the flush from the last turn_off has not completed we are still registered, start over.
+		if (flushPending) {
+			accelSensorManager.unregisterListener(this);
+			flushPending = false; }
+		reportLatencyMicroseconds = SensorBatching.getReportLatencyMicroseconds(accelSensor);
+		if ( !accelSensorManager.registerListener(this, accelSensor, SensorManager.SENSOR_DELAY_NORMAL, reportLatencyMicroseconds) ) {
 			Log.e("Accelerometer", "Accelerometer is broken");
 			TextFileManager.getDebugLogFile().writeEncrypted("Trying to start Accelerometer session, device cannot find accelerometer."); }
 		enabled = true;	}
 	
+	/** When batching, samples from this session may still be in the sensor's FIFO.  We flush them and
+	 * unregister once they have been delivered, in onFlushCompleted. */
 	public synchronized void turn_off(){
-		accelSensorManager.unregisterListener(this);
+		if (reportLatencyMicroseconds > 0 && accelSensorManager.flush(this)) { flushPending = true; }
+		else {
+			accelSensorManager.unregisterListener(this);
+			handOffSamples(); }
 		enabled = false; }
 	
+	@Override
+	public synchronized void onFlushCompleted(Sensor sensor) {
+		if (flushPending) {
+			accelSensorManager.unregisterListener(this);
+			flushPending = false;
+			handOffSamples(); }
+	}
+	
+	/** Passes the samples collected so far to the accelerometer file, they are written out on the write-behind thread. */
+	@Override
+	public synchronized void handOffSamples() {
+		if (buffer == null) { return; }
+		TextFileManager.getAccelFile().enqueueSamples(buffer);
+		buffer = null;
+	}
+	
 	/** Update the accuracy, synchronized so very closely timed trigger events do not overlap.
 	 * (only triggered by the system.) */
 	@Override
-	public synchronized void onAccuracyChanged(Sensor arg0, int arg1) {	accuracy = "" + arg1; }
+	public synchronized void onAccuracyChanged(Sensor arg0, int arg1) {	accuracy = arg1; }
 	
 	/** On receipt of a sensor change, record it.  Include accuracy. 
+	 * Samples are copied into a SensorSampleBuffer, nothing is allocated per sample.
 	 * (only ever triggered by the system.) */
 	@Override
 	public synchronized void onSensorChanged(SensorEvent arg0) {
 //		Log.e("Accelerometer", "accelerometer update");
-		Long javaTimeCode = System.currentTimeMillis();
+		long javaTimeCode;
+		if (reportLatencyMicroseconds > 0) { javaTimeCode = SensorBatching.eventTimeToWallClockMillis(arg0.timestamp, reportLatencyMicroseconds); }
+		else { javaTimeCode = System.currentTimeMillis(); }
 		float[] values = arg0.values;
-		String data = javaTimeCode.toString() + ',' + accuracy + ',' + values[0] + ',' + values[1] + ',' + values[2];
-		TextFileManager.getAccelFile().writeEncrypted(data);
+		if (buffer == null) { buffer = bufferPool.obtain(); }
+		if ( buffer.add(javaTimeCode, accuracy, values[0], values[1], values[2]) ) { handOffSamples(); }
 	}
 }
\ No newline at end of file
@@ -10,8 +10,16 @@ import android.content.Intent;
 import android.os.Build;
 import android.util.Log;
 
+import org.beiwe.app.storage.CsvRowEncoder;
 import org.beiwe.app.storage.EncryptionEngine;
 import org.beiwe.app.storage.TextFileManager;
+import org.beiwe.app.storage.WriteBehindWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 //import android.content.pm.PackageManager;
 
@@ -52,6 +60,24 @@ public class BluetoothListener extends BroadcastReceiver {
 	private Boolean internalBluetoothState;
 	private Boolean externalBluetoothState;
 	
+	// Scans wait here for the WriteBehindWriter thread, which hashes their MACs (the slow part) and writes them.
+	private static final int PENDING_SCAN_CAPACITY = 4096;
+	private static final ConcurrentLinkedQueue<PendingScan> pendingScans = new ConcurrentLinkedQueue<PendingScan>();
+	private static final AtomicInteger pendingScanCount = new AtomicInteger(0);
+	private static final AtomicLong droppedScanCount = new AtomicLong(0);
+	// only used on the WriteBehindWriter thread
+	private static final CsvRowEncoder row = new CsvRowEncoder();
+	
+	private static class PendingScan {
+		final long timestamp;
+		final String MAC;
+		final int rssi;
+		PendingScan(long timestamp, String MAC, int rssi) {
+			this.timestamp = timestamp;
+			this.MAC = MAC;
+			this.rssi = rssi; }
+	}
+	
 	/** Returns whether device version is capable of using Bluetooth LE */
 	public boolean doesBluetoothCapabilityExist() { return bluetoothExists; }
 	
@@ -167,10 +193,36 @@ public class BluetoothListener extends BroadcastReceiver {
 	private LeScanCallback bluetoothCallback = new LeScanCallback() {
 		@Override
 		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-			TextFileManager.getBluetoothLogFile().writeEncrypted( System.currentTimeMillis() + "," + EncryptionEngine.hashMAC( device.toString() ) + "," + rssi );
+			// the MAC is hashed later, on the write-behind thread, so the callback returns immediately.
+			pendingScans.offer( new PendingScan(System.currentTimeMillis(), device.toString(), rssi) );
+			if (pendingScanCount.incrementAndGet() > PENDING_SCAN_CAPACITY && pendingScans.poll() != null) {
+				pendingScanCount.decrementAndGet();
+				droppedScanCount.incrementAndGet(); }
+			WriteBehindWriter.wake();
 //			Log.i("Bluetooth",  System.currentTimeMillis() + "," + device.toString() + ", " + rssi );
 		} }; 
 	
+	/** Hashes the MACs of the scans seen since the last call and writes them to the bluetooth log.
+	 * Runs on the WriteBehindWriter thread, hashing is batched through hashMACs the same way Wi-Fi scans are. */
+	public static void writePendingScans() {
+		long dropped = droppedScanCount.getAndSet(0);
+		if (dropped > 0) { TextFileManager.writeDebugLogStatement(dropped + " bluetooth scans dropped from the pending scan queue"); }
+		if (pendingScans.isEmpty()) { return; }
+		List<PendingScan> scans = new ArrayList<PendingScan>();
+		PendingScan scan;
+		while ((scan = pendingScans.poll()) != null) {
+			pendingScanCount.decrementAndGet();
+			scans.add(scan); }
+		List<String> MACs = new ArrayList<String>(scans.size());
+		for (PendingScan pending : scans) { MACs.add(pending.MAC); }
+		List<String> hashedMACs = EncryptionEngine.hashMACs(MACs);
+		TextFileManager bluetoothLog = TextFileManager.getBluetoothLogFile();
+		synchronized (row) {
+			for (int i = 0; i < scans.size(); i++) {
+				row.reset().append(scans.get(i).timestamp).delimiter().append(hashedMACs.get(i)).delimiter().append(scans.get(i).rssi);
+				bluetoothLog.writeRow(row); } }
+	}
+	
 		
 /*####################################################################################
 ################# the onReceive Stack for Bluetooth state messages ###################
@@ -7,6 +7,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.provider.CallLog;
 
+import org.beiwe.app.storage.CsvRowEncoder;
 import org.beiwe.app.storage.EncryptionEngine;
 import org.beiwe.app.storage.TextFileManager;
 
@@ -112,6 +113,7 @@ public class CallLogger extends ContentObserver {
 			}
 
 			// While there exists a previous row
+			CsvRowEncoder callLoggerLine = new CsvRowEncoder();
 			while(!textsDBQuery.isBeforeFirst()) {
 				// Log.i("Call Logger", "" + (textsDBQuery.getInt(textsDBQuery.getColumnIndex(id))));
 				if (currentID <= lastRecordedID) {
@@ -119,27 +121,27 @@ public class CallLogger extends ContentObserver {
 					currentID = textsDBQuery.getInt(textsDBQuery.getColumnIndex(id));
 					continue;
 				}
-				StringBuilder callLoggerLine = new StringBuilder();
+				callLoggerLine.reset();
 				// Add hashed phone number
 				callLoggerLine.append(EncryptionEngine.hashPhoneNumber(textsDBQuery.getString(textsDBQuery.getColumnIndex(number))));
-				callLoggerLine.append(TextFileManager.DELIMITER);
+				callLoggerLine.delimiter();
 
 				// Add call type
 				int callType = textsDBQuery.getInt(textsDBQuery.getColumnIndex(type));
 				if (callType == CallLog.Calls.OUTGOING_TYPE) { callLoggerLine.append("Outgoing Call"); }
 				else if (callType == CallLog.Calls.INCOMING_TYPE) { callLoggerLine.append("Incoming Call"); }
 				else { callLoggerLine.append("Missed Call"); }
-				callLoggerLine.append(TextFileManager.DELIMITER);
+				callLoggerLine.delimiter();
 
 				// Add date
 				callLoggerLine.append(textsDBQuery.getLong(textsDBQuery.getColumnIndex(date)));
-				callLoggerLine.append(TextFileManager.DELIMITER);
+				callLoggerLine.delimiter();
 				
 				// Add duration
 				callLoggerLine.append(textsDBQuery.getInt(textsDBQuery.getColumnIndex(duration)));
 
 				// Log.i("Call Log", callLoggerLine.toString());
-				TextFileManager.getCallLogFile().writeEncrypted(callLoggerLine.toString());
+				TextFileManager.getCallLogFile().writeRow(callLoggerLine);
 				textsDBQuery.moveToPrevious();
 			}
 		}
@@ -6,9 +6,11 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Looper;
 import android.util.Log;
 
 import org.beiwe.app.PermissionHandler;
+import org.beiwe.app.storage.CsvRowEncoder;
 import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.TextFileManager;
 
@@ -78,10 +80,12 @@ public class GPSListener implements LocationListener {
 		if ( fineExists && finePermissible && coarsePermissible) { // parameters: provider, minTime, minDistance, listener);
 			//AndroidStudio insists that both of these require the same location permissions, which seems to be correct
 			// since there is only one toggle in userland anyway, yes or no to location permissions.
-			locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
+			// Updates are delivered on the main looper: turn_on runs on the timer action thread, whose looper
+			// would otherwise receive every location for as long as the GPS is on.
+			locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this, Looper.getMainLooper());
 		}
 		if ( coarseExists && finePermissible && coarsePermissible) { // parameters: provider, minTime, minDistance, listener);
-			locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, this);
+			locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, this, Looper.getMainLooper());
 		}
 
 		//Verbose statements on the quality of GPS data streams.
@@ -102,10 +106,12 @@ public class GPSListener implements LocationListener {
 		enabled = false;
 	}
 	
+	private final CsvRowEncoder row = new CsvRowEncoder();
+	
 	/** pushes an update to us whenever there is a location update. */
 	@Override
-	public void onLocationChanged(Location location) {
-		Long javaTimeCode = System.currentTimeMillis();
+	public synchronized void onLocationChanged(Location location) {
+		long javaTimeCode = System.currentTimeMillis();
 //		Log.d("GPSListener", "gps update...");
 		//order: time, latitude, longitude, altitude, horizontal_accuracy\n
 
@@ -113,13 +119,13 @@ public class GPSListener implements LocationListener {
 		double latitude = (location.getLatitude() + PersistentData.getLatitudeOffset());
 		double longitude = ((location.getLongitude() + PersistentData.getLongitudeOffset() + 180.0) % 360) - 180.0;
 
-		String data = javaTimeCode.toString() + TextFileManager.DELIMITER
-				+ latitude + TextFileManager.DELIMITER
-				+ longitude + TextFileManager.DELIMITER
-				+ location.getAltitude() + TextFileManager.DELIMITER
-				+ location.getAccuracy();
+		row.reset().append(javaTimeCode).delimiter()
+				.append(latitude).delimiter()
+				.append(longitude).delimiter()
+				.append(location.getAltitude()).delimiter()
+				.append(location.getAccuracy());
 		//note, altitude is notoriously inaccurate, getAccuracy only applies to latitude/longitude
-		TextFileManager.getGPSFile().writeEncrypted(data);
+		TextFileManager.getGPSFile().enqueueRow(row);
 	}
 	
 	/*  We do not actually need to implement any of the following overrides.
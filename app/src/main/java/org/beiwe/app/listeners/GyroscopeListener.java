@@ -4,15 +4,16 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.util.Log;
 
+import org.beiwe.app.storage.CsvRowEncoder;
 import org.beiwe.app.storage.TextFileManager;
 
 
 
-public class GyroscopeListener implements SensorEventListener {
+public class GyroscopeListener implements SensorEventListener2, SensorSampleBuffer.Owner {
     public static String header = "timestamp,accuracy,x,y,z";
 
     private SensorManager gyroSensorManager;
@@ -22,7 +23,23 @@ public class GyroscopeListener implements SensorEventListener {
     public Boolean exists = null;
     private Boolean enabled = null;
 
-    private String accuracy;
+    private int accuracy;
+
+    /** timestamp,accuracy,x,y,z, floats with 16 decimal places.  Package-private for ImuRowFormatTest. */
+    static final SensorSampleBuffer.RowFormat rowFormat = new SensorSampleBuffer.RowFormat() {
+        @Override public void appendRow(CsvRowEncoder row, long timestamp, int accuracy, float x, float y, float z) {
+            row.append(timestamp).delimiter();
+            SensorSampleBuffer.appendAccuracy(row, accuracy);
+            row.delimiter().append(String.format("%.16f", x));
+            row.delimiter().append(String.format("%.16f", y));
+            row.delimiter().append(String.format("%.16f", z));
+        } };
+    private static final SensorSampleBuffer.Pool bufferPool = new SensorSampleBuffer.Pool(8, rowFormat);
+    private SensorSampleBuffer buffer = null;
+
+    // see SensorBatching, 0 when samples are delivered as they are taken.
+    private int reportLatencyMicroseconds = 0;
+    private boolean flushPending = false;
 
     /** Returns a boolean of whether the Gyroscope is recording */
     public Boolean check_status(){
@@ -37,7 +54,8 @@ public class GyroscopeListener implements SensorEventListener {
     public GyroscopeListener(Context applicationContext){
         this.appContext = applicationContext;
         this.pkgManager = appContext.getPackageManager();
-        this.accuracy = "unknown";
+        this.accuracy = SensorSampleBuffer.ACCURACY_UNKNOWN;
+        SensorSampleBuffer.register(this);
         this.exists = pkgManager.hasSystemFeature(PackageManager.FEATURE_SENSOR_GYROSCOPE);
 
         if (this.exists) {
@@ -56,32 +74,58 @@ public class GyroscopeListener implements SensorEventListener {
         } }
 
     public synchronized void turn_on() {
-        if ( !gyroSensorManager.registerListener(this, gyroSensor, SensorManager.SENSOR_DELAY_NORMAL) ) {
+        // if the flush from the last turn_off has not completed we are still registered, start over.
+        if (flushPending) {
+            gyroSensorManager.unregisterListener(this);
+            flushPending = false; }
+        reportLatencyMicroseconds = SensorBatching.getReportLatencyMicroseconds(gyroSensor);
+        if ( !gyroSensorManager.registerListener(this, gyroSensor, SensorManager.SENSOR_DELAY_NORMAL, reportLatencyMicroseconds) ) {
             Log.e("Gyroscope", "Gyroscope is broken");
             TextFileManager.getDebugLogFile().writeEncrypted("Trying to start gyroscope session, device cannot find gyroscope."); }
         enabled = true;	}
 
 
+    /** When batching, samples from this session may still be in the sensor's FIFO.  We flush them and
+     * unregister once they have been delivered, in onFlushCompleted. */
     public synchronized void turn_off(){
-        gyroSensorManager.unregisterListener(this);
+        if (reportLatencyMicroseconds > 0 && gyroSensorManager.flush(this)) { flushPending = true; }
+        else {
+            gyroSensorManager.unregisterListener(this);
+            handOffSamples(); }
         enabled = false;
     }
 
+    @Override
+    public synchronized void onFlushCompleted(Sensor sensor) {
+        if (flushPending) {
+            gyroSensorManager.unregisterListener(this);
+            flushPending = false;
+            handOffSamples(); }
+    }
+
+    /** Passes the samples collected so far to the gyroscope file, they are written out on the write-behind thread. */
+    @Override
+    public synchronized void handOffSamples() {
+        if (buffer == null) { return; }
+        TextFileManager.getGyroFile().enqueueSamples(buffer);
+        buffer = null;
+    }
+
     /** Update the accuracy, synchronized so very closely timed trigger events do not overlap.
      * (only triggered by the system.) */
     @Override
-    public synchronized void onAccuracyChanged(Sensor arg0, int arg1) {	accuracy = "" + arg1; }
+    public synchronized void onAccuracyChanged(Sensor arg0, int arg1) {	accuracy = arg1; }
 
     /** On receipt of a sensor change, record it.  Include accuracy.
+     * Samples are copied into a SensorSampleBuffer, formatting happens on the write-behind thread.
      * (only ever triggered by the system.) */
     @Override
     public synchronized void onSensorChanged(SensorEvent arg0) {
-        Long javaTimeCode = System.currentTimeMillis();
+        long javaTimeCode;
+        if (reportLatencyMicroseconds > 0) { javaTimeCode = SensorBatching.eventTimeToWallClockMillis(arg0.timestamp, reportLatencyMicroseconds); }
+        else { javaTimeCode = System.currentTimeMillis(); }
         float[] values = arg0.values;
-        String value0= String.format("%.16f", values[0]);
-        String value1= String.format("%.16f", values[1]);
-        String value2= String.format("%.16f", values[2]);
-        String data = javaTimeCode.toString() + ',' + accuracy + ',' + value0 + ',' + value1 + ',' + value2;
-        TextFileManager.getGyroFile().writeEncrypted(data);
+        if (buffer == null) { buffer = bufferPool.obtain(); }
+        if ( buffer.add(javaTimeCode, accuracy, values[0], values[1], values[2]) ) { handOffSamples(); }
     }
 }
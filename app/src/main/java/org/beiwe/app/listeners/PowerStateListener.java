@@ -6,6 +6,7 @@ import android.content.Intent;
 import android.os.PowerManager;
 import android.util.Log;
 
+import org.beiwe.app.storage.CsvRowEncoder;
 import org.beiwe.app.storage.TextFileManager;
 
 /** Listens for power state changes.
@@ -25,12 +26,15 @@ public class PowerStateListener extends BroadcastReceiver {
 	
 	public static String header = "timestamp, event";	
 	
+	private static final CsvRowEncoder row = new CsvRowEncoder();
+	
 	/** Handles the logging, includes a new line for the CSV files.
 	 * This code is otherwise reused everywhere.*/
 	private void makeLogStatement(String message) {
 		Log.i("PowerStateListener", message);
-		Long javaTimeCode = System.currentTimeMillis();
-		TextFileManager.getPowerStateFile().writeEncrypted(javaTimeCode.toString() + TextFileManager.DELIMITER + message );
+		synchronized (row) {
+			row.reset().append(System.currentTimeMillis()).delimiter().append(message);
+			TextFileManager.getPowerStateFile().writeRow(row); }
 	}
 	
 	
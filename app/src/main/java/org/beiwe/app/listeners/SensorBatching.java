@@ -0,0 +1,39 @@
+package org.beiwe.app.listeners;
+
+import android.hardware.Sensor;
+import android.os.SystemClock;
+
+import org.beiwe.app.storage.PersistentData;
+
+/**Shared logic for accelerometer and gyroscope hardware batching.
+ * When the study sets a sensor report latency the listeners register with it, and sensors that have a
+ * hardware FIFO hold samples there instead of waking the application processor for every one.  Samples
+ * then arrive in bursts, so a sample's time has to come from SensorEvent.timestamp rather than from the
+ * time it was delivered. */
+class SensorBatching {
+	
+	/* A batch can be delivered a little after the report latency has passed (the FIFO is drained
+	 * over a bus, and a flush on turn_off delivers whatever is left). */
+	private static final long DELIVERY_DELAY_ALLOWANCE_MILLISECONDS = 10 * 1000L;
+	
+	/** @return the maximum report latency to register the sensor with in microseconds, 0 if batching is
+	 * disabled or the sensor has no FIFO to batch in. */
+	static int getReportLatencyMicroseconds(Sensor sensor) {
+		long latencyMilliseconds = PersistentData.getSensorReportLatencyMilliseconds();
+		if (latencyMilliseconds <= 0 || sensor.getFifoMaxEventCount() <= 0) { return 0; }
+		return (int) Math.min(latencyMilliseconds * 1000L, Integer.MAX_VALUE);
+	}
+	
+	/**Converts a SensorEvent.timestamp to wall clock time.  The timestamp is nanoseconds since boot on
+	 * nearly every device, but a few older devices use a different time base; if the conversion puts the
+	 * sample in the future, or further in the past than the report latency allows, we fall back to the
+	 * delivery time.
+	 * @return the time the sample was taken, in milliseconds since the epoch. */
+	static long eventTimeToWallClockMillis(long eventTimestampNanos, int reportLatencyMicroseconds) {
+		long now = System.currentTimeMillis();
+		long ageMilliseconds = (SystemClock.elapsedRealtimeNanos() - eventTimestampNanos) / 1000000L;
+		if (ageMilliseconds < 0 || ageMilliseconds > reportLatencyMicroseconds / 1000L + DELIVERY_DELAY_ALLOWANCE_MILLISECONDS) {
+			return now; }
+		return now - ageMilliseconds;
+	}
+}
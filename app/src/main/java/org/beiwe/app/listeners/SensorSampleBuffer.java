@@ -0,0 +1,120 @@
+package org.beiwe.app.listeners;
+
+import org.beiwe.app.storage.CsvRowEncoder;
+import org.beiwe.app.storage.ImuBlockFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**A reusable column buffer of accelerometer or gyroscope samples.
+ * Building a CSV row for every onSensorChanged call costs a boxed timestamp, several Strings and a
+ * StringBuilder per sample.  Instead the listeners copy each sample into these primitive arrays, which
+ * allocates nothing, and hand the whole buffer to TextFileManager.enqueueSamples once it is full (or old
+ * enough).  The rows are encoded on the write-behind thread, and the buffer then goes back to its Pool.
+ * A buffer is only ever touched by one thread at a time: the listener while filling it, the write-behind
+ * thread after it has been handed over. */
+public class SensorSampleBuffer {
+
+	public static final int CAPACITY = 128;
+	/* a buffer is handed over once its first sample is this old, so that quiet sessions still reach the file. */
+	private static final long MAX_BUFFER_AGE = 10 * 1000L;  // in milliseconds
+	/* the accuracy of samples taken before the sensor has reported one */
+	public static final int ACCURACY_UNKNOWN = ImuBlockFormat.ACCURACY_UNKNOWN;
+
+	/** Formats one sample as a row of the stream's CSV, called on the write-behind thread. */
+	public interface RowFormat {
+		void appendRow(CsvRowEncoder row, long timestamp, int accuracy, float x, float y, float z);
+	}
+
+	/** A listener that fills buffers.  Owners register themselves so that handOffAll can reach them. */
+	public interface Owner {
+		/** Passes the partly filled buffer, if there is one, to the storage layer. */
+		void handOffSamples();
+	}
+
+	// weak, so that a listener from a previous MainService does not stay alive because it once registered.
+	private static final Set<Owner> owners = Collections.newSetFromMap(new WeakHashMap<Owner, Boolean>());
+
+	public static void register(Owner owner) {
+		synchronized (owners) { owners.add(owner); }
+	}
+
+	/**Makes every registered listener hand over its partly filled buffer.  Call this before draining the
+	 * write queues when the app may be about to die, otherwise up to CAPACITY samples per sensor are lost. */
+	public static void handOffAll() {
+		ArrayList<Owner> current;
+		synchronized (owners) { current = new ArrayList<Owner>(owners); }
+		for (Owner owner : current) { owner.handOffSamples(); }
+	}
+
+	private final Pool pool;
+	private final long[] timestamps = new long[CAPACITY];
+	private final int[] accuracies = new int[CAPACITY];
+	private final float[] xs = new float[CAPACITY];
+	private final float[] ys = new float[CAPACITY];
+	private final float[] zs = new float[CAPACITY];
+	private int size = 0;
+
+	private SensorSampleBuffer(Pool pool) { this.pool = pool; }
+
+	/** Adds a sample, does not allocate.
+	 * @return true if the buffer should now be handed to the storage layer (it is full, or its oldest sample
+	 * is older than MAX_BUFFER_AGE); the buffer must not be added to after that. */
+	public boolean add(long timestamp, int accuracy, float x, float y, float z) {
+		timestamps[size] = timestamp;
+		accuracies[size] = accuracy;
+		xs[size] = x;
+		ys[size] = y;
+		zs[size] = z;
+		size++;
+		return size == CAPACITY || timestamp - timestamps[0] >= MAX_BUFFER_AGE;
+	}
+
+	public int size() { return size; }
+
+	public long getTimestamp(int index) { return timestamps[index]; }
+	public int getAccuracy(int index) { return accuracies[index]; }
+	public float getX(int index) { return xs[index]; }
+	public float getY(int index) { return ys[index]; }
+	public float getZ(int index) { return zs[index]; }
+
+	/** Appends the index-th sample to row in the stream's CSV format. */
+	public void appendRow(CsvRowEncoder row, int index) {
+		pool.format.appendRow(row, timestamps[index], accuracies[index], xs[index], ys[index], zs[index]);
+	}
+
+	/** Appends an accuracy the way the sensor listeners have always written it. */
+	public static void appendAccuracy(CsvRowEncoder row, int accuracy) {
+		if (accuracy == ACCURACY_UNKNOWN) { row.append("unknown"); }
+		else { row.append(accuracy); }
+	}
+
+	/** Empties the buffer and returns it to its pool, the buffer must not be used after this. */
+	public void recycle() {
+		size = 0;
+		pool.free.offer(this);
+	}
+
+	/**A small pool of buffers for one data stream.  Buffers are created when the pool is empty, and once
+	 * there are more than the pool holds the extras are left to the garbage collector. */
+	public static class Pool {
+		private final ArrayBlockingQueue<SensorSampleBuffer> free;
+		private final RowFormat format;
+
+		/** @param size the number of idle buffers kept for reuse.
+		 * @param format how this stream's samples are written as CSV rows. */
+		public Pool(int size, RowFormat format) {
+			this.free = new ArrayBlockingQueue<SensorSampleBuffer>(size);
+			this.format = format;
+		}
+
+		public SensorSampleBuffer obtain() {
+			SensorSampleBuffer buffer = free.poll();
+			if (buffer == null) { buffer = new SensorSampleBuffer(this); }
+			return buffer;
+		}
+	}
+}
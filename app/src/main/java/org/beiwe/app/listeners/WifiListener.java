@@ -4,9 +4,11 @@ import android.content.Context;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 
+import org.beiwe.app.storage.CsvRowEncoder;
 import org.beiwe.app.storage.EncryptionEngine;
 import org.beiwe.app.storage.TextFileManager;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**WifiListener
@@ -35,15 +37,21 @@ public class WifiListener {
 		if ( wifiManager.getWifiState() == WifiManager.WIFI_STATE_ENABLED ) {
 			List<ScanResult> scanResults = wifiManager.getScanResults();
 			if (scanResults != null) {
+				//hashing is the expensive part of a scan, the batch call spreads it across cores.
+				List<String> BSSIDs = new ArrayList<String>(scanResults.size());
+				for (ScanResult result : scanResults) { BSSIDs.add(result.BSSID); }
+				List<String> hashedBSSIDs = EncryptionEngine.hashMACs(BSSIDs);
+				
 				//we save some compute on the encryption here by dumping all the lines to print in one go.
-				StringBuilder data = new StringBuilder();
-				for (ScanResult result : scanResults){
-					data.append( EncryptionEngine.hashMAC( result.BSSID) + "," + result.frequency + "," + result.level );
-					data.append("\n"); }
+				CsvRowEncoder data = new CsvRowEncoder();
+				for (int i = 0; i < scanResults.size(); i++) {
+					ScanResult result = scanResults.get(i);
+					data.append( hashedBSSIDs.get(i) ).delimiter().append( result.frequency ).delimiter().append( result.level );
+					data.append('\n'); }
 
 				// Create a new file, write the data to it, and close the file
 				TextFileManager.getWifiLogFile().newFile(); //note: the file name's timestamp is actually relevant, so we always make a new file.
-				TextFileManager.getWifiLogFile().writeEncrypted( data.toString() );
+				TextFileManager.getWifiLogFile().writeRow( data );
 				TextFileManager.getWifiLogFile().closeFile();
 //				Log.d("WIFI", "DONE GONE DID SCAN.");
 			} // and provide a debug log statement for data researchers if we cannot get scan data right now.
@@ -13,8 +13,6 @@ import org.beiwe.app.storage.TextFileManager;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -22,8 +20,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -44,6 +53,7 @@ public class PostRequest {
 	public static void initialize(Context applicationContext) { new PostRequest(applicationContext); }
 
 	private static final Object FILE_UPLOAD_LOCK = new Object() {}; //Our lock for file uploading
+	private static final int UPLOAD_BUFFER_SIZE = 65536; //value is in bytes
 
 	/*##################################################################################
 	 ##################### Publicly Accessible Functions ###############################
@@ -124,7 +134,7 @@ public class PostRequest {
 	 * @param url a URL object
 	 * @return a new HttpsURLConnection with minimal settings applied
 	 * @throws IOException This function can throw 2 kinds of IO exceptions: IOExeptions and ProtocolException*/
-	private static HttpsURLConnection minimalHTTP(URL url) throws IOException {
+	static HttpsURLConnection minimalHTTP(URL url) throws IOException {
 		// Create a new HttpsURLConnection and set its parameters
 		HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
 		connection.setUseCaches(false);
@@ -211,11 +221,16 @@ public class PostRequest {
 				String key = responseJSON.getString("client_public_key");
 				writeKey(key, response);
 				JSONObject deviceSettings = responseJSON.getJSONObject("device_settings");
-				SetDeviceSettings.writeDeviceSettings(deviceSettings);
-				if (responseJSON.has("study_id") && responseJSON.has("study_name")) {
-					PersistentData.setStudyID(responseJSON.getString("study_id"));
-					PersistentData.setStudyName(responseJSON.getString("study_name"));
+				// every device setting is its own key, write them all to disk in one commit.
+				PersistentData.beginBatch();
+				try {
+					SetDeviceSettings.writeDeviceSettings(deviceSettings);
+					if (responseJSON.has("study_id") && responseJSON.has("study_name")) {
+						PersistentData.setStudyID(responseJSON.getString("study_id"));
+						PersistentData.setStudyName(responseJSON.getString("study_name"));
+					}
 				}
+				finally { PersistentData.commitBatch(); }
 			} catch (JSONException e) {
 				// If it caught a JSONException, the likeliest cause is that the server returned a
 				// 200 response code but didn't send a key or device settings, which means it's not
@@ -257,40 +272,44 @@ public class PostRequest {
 	/** Constructs and sends a multipart HTTP POST request with a file attached.
 	 * This function uses minimalHTTP() directly because it needs to add a header (?) to the
 	 * HttpsURLConnection object before it writes a file to it.
-	 * This function had performance issues with large files, these have been resolved by conversion
-	 * to use buffered file reads and http/tcp stream writes.
+	 * The exact length of the request body is known before we start, so the connection uses fixed length
+	 * streaming mode and sends the file as it is read, in UPLOAD_BUFFER_SIZE pieces, instead of buffering
+	 * the whole body in memory.
 	 * @param file the File to be uploaded
 	 * @param uploadUrl the destination URL that receives the upload
 	 * @return HTTP Response code as int
 	 * @throws IOException */
 	private static int doFileUpload(File file, URL uploadUrl, long stopTime) throws IOException {
-		if (file.length() >  1024*1024*10) { Log.i("upload", "file length: " + file.length() ); }
+		long fileLength = file.length();
+		if (fileLength >  1024*1024*10) { Log.i("upload", "file length: " + fileLength ); }
+		byte[] parameters = ( securityParameters(null) + makeParameter("file_name", file.getName() ) + "file=" ).getBytes();
+		
 		HttpsURLConnection connection = minimalHTTP( uploadUrl );
-		BufferedOutputStream request = new BufferedOutputStream( connection.getOutputStream() , 65536);
-		BufferedInputStream inputStream = new BufferedInputStream( new FileInputStream(file) , 65536);
-
-		request.write( securityParameters(null).getBytes() );
-		request.write( makeParameter("file_name", file.getName() ).getBytes() );
-		request.write( "file=".getBytes() );
-//		long start = System.currentTimeMillis();
-		// Read in data from the file, and pour it into the POST request stream
-		int data;
-		int i = 0;
-		while ( ( data = inputStream.read() ) != -1 ) {
-			request.write((char) data);
-			i++;
-			//This check has been profiled, it causes no slowdown in upload speeds, and vastly improves upload behavior.
-			if (i % 65536 == 0 && stopTime<System.currentTimeMillis()) {
+		connection.setFixedLengthStreamingMode( parameters.length + fileLength );
+		OutputStream request = connection.getOutputStream();
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			request.write( parameters );
+			// Read in data from the file, and pour it into the POST request stream
+			byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+			long remaining = fileLength;
+			int count;
+			while ( remaining > 0 && ( count = inputStream.read( buffer, 0, (int) Math.min(buffer.length, remaining) ) ) != -1 ) {
+				request.write( buffer, 0, count );
+				remaining -= count;
+				//This check has been profiled, it causes no slowdown in upload speeds, and vastly improves upload behavior.
+				if (stopTime < System.currentTimeMillis()) {
+					connection.disconnect();
+					return -1;
+				}
+			}
+			if (remaining > 0) {  // the declared content length can no longer be met.
 				connection.disconnect();
-				return -1;
+				throw new IOException("file " + file.getName() + " shrank during upload");
 			}
+		} finally {
+			inputStream.close();
 		}
-//		long stop = System.currentTimeMillis();
-//		if (file.length() >  1024*1024*10) {
-//			Log.w("upload", "speed: " + (file.length() / ((stop - start) / 1000)) / 1024 + "KBps");
-//		}
-		inputStream.close();
-		request.write("".getBytes());
 		request.flush();
 		request.close();
 
@@ -371,44 +390,97 @@ public class PostRequest {
 	}
 
 	/** Uploads all files to the Beiwe server.
+	 * Files are uploaded on a pool of PersistentData.getParallelUploadCount() threads, one Future per file
+	 * (or per batch of small files, when batched uploads are enabled), in the order chosen by the UploadScheduler.
+	 * All uploads share a one hour deadline: uploads that have not started by then are skipped, uploads in
+	 * progress abort at their next buffer.
 	 * Files get deleted as soon as a 200 OK code in received from the server. */
 	private static void doUploadAllFiles(){
 		synchronized (FILE_UPLOAD_LOCK) {
 			//long stopTime = System.currentTimeMillis() + PersistentData.getUploadDataFilesFrequencyMilliseconds();
-			long stopTime = System.currentTimeMillis() + 1000 * 60 * 60; //One hour to upload files
+			final long stopTime = System.currentTimeMillis() + 1000 * 60 * 60; //One hour to upload files
 			String[] files = TextFileManager.getAllUploadableFiles();
 			Log.i("uploading", "uploading " + files.length + " files");
-			File file = null;
-			URL uploadUrl = null; //set up url, write a crash log and fail gracefully if this ever breaks.
+			final URL uploadUrl; //set up url, write a crash log and fail gracefully if this ever breaks.
+			final URL resumableUploadUrl;
+			final URL batchUploadUrl;
 			try {
 				uploadUrl = new URL(addWebsitePrefix(appContext.getResources().getString(R.string.data_upload_url)));
+				resumableUploadUrl = new URL(addWebsitePrefix(appContext.getResources().getString(R.string.resumable_upload_url)));
+				batchUploadUrl = new URL(addWebsitePrefix(appContext.getResources().getString(R.string.batch_upload_url)));
 			} catch (MalformedURLException e) {
 				CrashHandler.writeCrashlog(e, appContext);
 				return;
 			}
-
-			for (String fileName : TextFileManager.getAllUploadableFiles()) {
-				try {
-					file = new File(appContext.getFilesDir() + "/" + fileName);
-//				Log.d("uploading", "uploading " + file.getName());
-					if (PostRequest.doFileUpload(file, uploadUrl, stopTime) == 200) {
-						TextFileManager.delete(fileName);
+			ResumableUploader.pruneOffsetIndex(appContext);
+
+			ExecutorService uploadPool = Executors.newFixedThreadPool(PersistentData.getParallelUploadCount(), new ThreadFactory() {
+				@Override public Thread newThread(Runnable runnable) { return new Thread(runnable, "upload_thread"); }
+			});
+			// the pool runs uploads in submission order, so submit the highest priority files first.
+			List<Future<Integer>> uploads = new ArrayList<Future<Integer>>(files.length);
+			for (List<String> unbatchedFiles : UploadScheduler.plan(appContext, files)) {
+				if (PersistentData.getUseBatchedUploads()) { // small files go up together, see UploadBatcher
+					for (final List<File> batch : UploadBatcher.makeBatches(appContext, unbatchedFiles)) {
+						uploads.add(uploadPool.submit(new Callable<Integer>() {
+							@Override public Integer call() throws IOException { return UploadBatcher.upload(batch, batchUploadUrl, stopTime); }
+						}));
 					}
-				} catch (IOException e) {
-					Log.w("PostRequest.java", "Failed to upload file " + fileName + ". Raised exception: " + e.getCause());
 				}
+				for (final String fileName : unbatchedFiles) {
+					uploads.add(uploadPool.submit(new Callable<Integer>() {
+						@Override public Integer call() { return uploadFile(fileName, uploadUrl, resumableUploadUrl, stopTime); }
+					}));
+				}
+			}
+			uploadPool.shutdown();
 
-				if (stopTime < System.currentTimeMillis()) {
+			for (Future<Integer> upload : uploads) {
+				try {
+					upload.get(Math.max(stopTime - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+				} catch (ExecutionException e) {
+					Log.w("PostRequest.java", "upload failed with exception: " + e.getCause());
+				} catch (TimeoutException e) {
+					uploadPool.shutdownNow();
 					Log.w("UPLOAD STUFF", "shutting down upload due to time limit, we should never reach this.");
-                    TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis()+" upload time limit of 1 hr reached, there are likely files still on the phone that have not been uploaded." );
+					TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis()+" upload time limit of 1 hr reached, there are likely files still on the phone that have not been uploaded." );
 					CrashHandler.writeCrashlog(new Exception("Upload took longer than 1 hour"), appContext);
-                    return;
+					return;
+				} catch (InterruptedException e) {
+					uploadPool.shutdownNow();
+					Log.w("PostRequest.java", "upload interrupted");
+					return;
 				}
 			}
 			Log.i("DOING UPLOAD STUFF", "DONE WITH UPLOAD");
 		}
 	}
 
+	/** Uploads a single file, runs on the upload pool.  The file is deleted if the server accepts it.
+	 * When resumable uploads are enabled, files larger than a chunk go through the ResumableUploader.
+	 * @return the HTTP response code, or -1 if the upload was skipped or failed. */
+	private static int uploadFile(String fileName, URL uploadUrl, URL resumableUploadUrl, long stopTime) {
+		if (stopTime < System.currentTimeMillis()) {
+			return -1;
+		}
+		File file = new File(appContext.getFilesDir() + "/" + fileName);
+		try {
+			int response;
+			if (PersistentData.getUseResumableUploads() && file.length() > ResumableUploader.CHUNK_SIZE) {
+				response = ResumableUploader.upload(appContext, file, resumableUploadUrl, stopTime);
+			} else {
+				response = PostRequest.doFileUpload(file, uploadUrl, stopTime);
+			}
+			if (response == 200) {
+				TextFileManager.delete(fileName);
+			}
+			return response;
+		} catch (IOException e) {
+			Log.w("PostRequest.java", "Failed to upload file " + fileName + ". Raised exception: " + e.getCause());
+			return -1;
+		}
+	}
+
 
 	//#######################################################################################
 	//############################### UTILITY FUNCTIONS #####################################
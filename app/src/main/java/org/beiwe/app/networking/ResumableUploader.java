@@ -0,0 +1,152 @@
+package org.beiwe.app.networking;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**Uploads large files in fixed size chunks so that an interrupted upload can pick up where it left off.
+ * 
+ * Each chunk is a POST with the usual security parameters followed by
+ *     file_name=[name]&file_size=[total bytes]&offset=[first byte of this chunk]&chunk=[raw chunk bytes]
+ * The server stores the chunk and responds 200 with the number of bytes of the file it now holds (its
+ * acknowledged offset) as the response body, the next chunk starts there.  The file is complete, and is
+ * deleted locally, once the acknowledged offset equals the file size.
+ * 
+ * Acknowledged offsets are kept in a small SharedPreferences index (not in the files directory, so the
+ * index is never mistaken for data to upload).  The next upload cycle resumes from the recorded offset;
+ * if the server disagrees it answers with its own offset and we continue from that instead. */
+public class ResumableUploader {
+	
+	public static final int CHUNK_SIZE = 512 * 1024; //value is in bytes
+	private static final int COPY_BUFFER_SIZE = 65536; //value is in bytes
+	private static final String OFFSET_INDEX_NAME = "resumable_upload_offsets";
+	
+	/**Uploads the remainder of a file, chunk by chunk.
+	 * @return 200 once the server has the whole file, -1 if the deadline passed or the server stopped
+	 * making progress, otherwise the failing HTTP response code.  Progress is kept in every case. */
+	static int upload (Context appContext, File file, URL uploadUrl, long stopTime) throws IOException {
+		return upload(getOffsetIndex(appContext), PostRequest.securityParameters(null), file, uploadUrl, stopTime);
+	}
+	
+	/**The upload loop, with the offset index and the request's security parameters passed in so that it can
+	 * be run against a local server in a JVM test, see ResumableUploaderTest. */
+	static int upload (SharedPreferences offsetIndex, String securityParameters, File file, URL uploadUrl, long stopTime) throws IOException {
+		String fileName = file.getName();
+		long fileLength = file.length();
+		long offset = offsetIndex.getLong(fileName, 0);
+		if (offset < 0 || offset > fileLength) {
+			offset = 0;
+		}
+		
+		while (offset < fileLength) {
+			if (stopTime < System.currentTimeMillis()) {
+				return -1;
+			}
+			int chunkLength = (int) Math.min(CHUNK_SIZE, fileLength - offset);
+			HttpsURLConnection connection = PostRequest.minimalHTTP(uploadUrl);
+			long acknowledged;
+			try {
+				sendChunk(connection, securityParameters, file, fileLength, offset, chunkLength);
+				int response = connection.getResponseCode();
+				if (response != 200) {
+					return response;
+				}
+				acknowledged = readAcknowledgedOffset(connection);
+			} finally {
+				connection.disconnect();
+			}
+			
+			if (acknowledged < 0 || acknowledged > fileLength) {
+				throw new IOException("server acknowledged invalid offset " + acknowledged + " for " + fileName);
+			}
+			if (acknowledged == offset) { //no progress, try again next upload cycle rather than spinning.
+				Log.w("ResumableUploader", "server did not accept chunk at " + offset + " of " + fileName);
+				return -1;
+			}
+			offset = acknowledged;
+			offsetIndex.edit().putLong(fileName, offset).apply();
+		}
+		offsetIndex.edit().remove(fileName).apply();
+		return 200;
+	}
+	
+	/** Writes one chunk request, using fixed length streaming mode so the chunk is never held in memory. */
+	private static void sendChunk (HttpsURLConnection connection, String securityParameters, File file, long fileLength,
+			long offset, int chunkLength) throws IOException {
+		byte[] parameters = ( securityParameters
+				+ PostRequest.makeParameter("file_name", file.getName())
+				+ PostRequest.makeParameter("file_size", String.valueOf(fileLength))
+				+ PostRequest.makeParameter("offset", String.valueOf(offset))
+				+ "chunk=" ).getBytes();
+		connection.setFixedLengthStreamingMode(parameters.length + chunkLength);
+		OutputStream request = connection.getOutputStream();
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			request.write(parameters);
+			long skipped = 0;
+			while (skipped < offset) {
+				long count = inputStream.skip(offset - skipped);
+				if (count <= 0) {
+					throw new IOException("could not seek to " + offset + " in " + file.getName());
+				}
+				skipped += count;
+			}
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int remaining = chunkLength;
+			while (remaining > 0) {
+				int count = inputStream.read(buffer, 0, Math.min(buffer.length, remaining));
+				if (count == -1) {
+					throw new IOException("file " + file.getName() + " shrank during upload");
+				}
+				request.write(buffer, 0, count);
+				remaining -= count;
+			}
+		} finally {
+			inputStream.close();
+		}
+		request.flush();
+		request.close();
+	}
+	
+	private static long readAcknowledgedOffset (HttpsURLConnection connection) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+		try {
+			String body = reader.readLine();
+			if (body == null) {
+				throw new IOException("empty chunk upload response");
+			}
+			return Long.parseLong(body.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("chunk upload response was not an offset: " + e.getMessage());
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/** Drops index entries for files that no longer exist, e.g. files uploaded in full by another path. */
+	static void pruneOffsetIndex (Context appContext) {
+		SharedPreferences offsetIndex = getOffsetIndex(appContext);
+		SharedPreferences.Editor editor = offsetIndex.edit();
+		for (Map.Entry<String, ?> entry : offsetIndex.getAll().entrySet()) {
+			if (!new File(appContext.getFilesDir(), entry.getKey()).exists()) {
+				editor.remove(entry.getKey());
+			}
+		}
+		editor.apply();
+	}
+	
+	private static SharedPreferences getOffsetIndex (Context appContext) {
+		return appContext.getSharedPreferences(OFFSET_INDEX_NAME, Context.MODE_PRIVATE);
+	}
+}
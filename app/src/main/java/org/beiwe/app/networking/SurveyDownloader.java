@@ -8,6 +8,7 @@ import org.beiwe.app.CrashHandler;
 import org.beiwe.app.JSONUtils;
 import org.beiwe.app.R;
 import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.SurveyRegistry;
 import org.beiwe.app.survey.SurveyScheduler;
 import org.beiwe.app.ui.utils.SurveyNotifications;
 import org.json.JSONArray;
@@ -45,7 +46,11 @@ public class SurveyDownloader {
 		
 		@Override
 		protected void onPostExecute(Void arg) {
-			responseCode = updateSurveys(appContext, jsonResponseString);
+			// a survey update rewrites several keys per survey, write them to disk in one commit.
+			PersistentData.beginBatch();
+			try { responseCode = updateSurveys(appContext, jsonResponseString); }
+			finally { PersistentData.commitBatch(); }
+			SurveyRegistry.rebuild();
 			SurveyNotifications.showSurveyNotifications(appContext, notificationSurveyIds);
 			super.onPostExecute(arg);
 		} }.execute();
@@ -0,0 +1,188 @@
+package org.beiwe.app.networking;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.beiwe.app.DeviceInfo;
+import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.TextFileManager;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**Packs many small data files into a single upload request.
+ * Wifi scans, surveys and file rotations produce lots of tiny files, and each one would otherwise cost a full
+ * HTTPS POST with the security parameters sent again.
+ * 
+ * A batch is a multipart/form-data POST with the patient_id, password and device_id fields followed by one
+ * "file" part per data file, the part's filename is the data file's name.  The server responds 200 with
+ *     {"accepted": ["file name", ...]}
+ * listing the files it has stored, those files are deleted together.  Files it does not list stay on the
+ * phone for the next upload cycle. */
+public class UploadBatcher {
+	
+	public static final long SMALL_FILE_SIZE = 64 * 1024; //value is in bytes, larger files are uploaded on their own.
+	public static final long BATCH_BYTE_BUDGET = 1024 * 1024; //value is in bytes
+	private static final int COPY_BUFFER_SIZE = 65536; //value is in bytes
+	private static final String LINE_END = "\r\n";
+	
+	/**Takes the small files out of the list of files to upload and groups them into batches.
+	 * @param fileNames files waiting to be uploaded, the files that get batched are removed from this list.
+	 * @return batches of files, each no larger than BATCH_BYTE_BUDGET in total. */
+	static List<List<File>> makeBatches (Context appContext, List<String> fileNames) {
+		List<List<File>> batches = new ArrayList<List<File>>();
+		List<File> batch = new ArrayList<File>();
+		long batchSize = 0;
+		for (Iterator<String> iterator = fileNames.iterator(); iterator.hasNext(); ) {
+			File file = new File(appContext.getFilesDir(), iterator.next());
+			long fileSize = file.length();
+			if (!file.exists() || fileSize > SMALL_FILE_SIZE) {
+				continue;
+			}
+			iterator.remove();
+			if (batchSize + fileSize > BATCH_BYTE_BUDGET && !batch.isEmpty()) {
+				batches.add(batch);
+				batch = new ArrayList<File>();
+				batchSize = 0;
+			}
+			batch.add(file);
+			batchSize += fileSize;
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
+	
+	/**Uploads a batch of files in one request, then deletes the files the server accepted.
+	 * @return the HTTP response code, or -1 if the deadline passed. */
+	static int upload (List<File> batch, URL uploadUrl, long stopTime) throws IOException {
+		String boundary = newBoundary();
+		// everything except the file contents, with the file lengths captured now so the body length is exact.
+		List<byte[]> partHeaders = new ArrayList<byte[]>(batch.size());
+		long[] fileLengths = new long[batch.size()];
+		ByteArrayOutputStream fields = new ByteArrayOutputStream();
+		writeField(fields, boundary, "patient_id", PersistentData.getPatientID());
+		writeField(fields, boundary, "password", PersistentData.getPassword());
+		writeField(fields, boundary, "device_id", DeviceInfo.getAndroidID());
+		byte[] closing = ("--" + boundary + "--" + LINE_END).getBytes();
+		long contentLength = fields.size() + closing.length;
+		for (int i = 0; i < batch.size(); i++) {
+			byte[] partHeader = ( "--" + boundary + LINE_END
+					+ "Content-Disposition: form-data; name=\"file\"; filename=\"" + batch.get(i).getName() + "\"" + LINE_END
+					+ "Content-Type: application/octet-stream" + LINE_END + LINE_END ).getBytes();
+			partHeaders.add(partHeader);
+			fileLengths[i] = batch.get(i).length();
+			contentLength += partHeader.length + fileLengths[i] + LINE_END.length();
+		}
+		
+		HttpsURLConnection connection = PostRequest.minimalHTTP(uploadUrl);
+		try {
+			connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+			connection.setFixedLengthStreamingMode(contentLength);
+			OutputStream request = connection.getOutputStream();
+			fields.writeTo(request);
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			for (int i = 0; i < batch.size(); i++) {
+				if (stopTime < System.currentTimeMillis()) {
+					return -1;
+				}
+				request.write(partHeaders.get(i));
+				copyFile(batch.get(i), fileLengths[i], request, buffer);
+				request.write(LINE_END.getBytes());
+			}
+			request.write(closing);
+			request.flush();
+			request.close();
+			
+			int response = connection.getResponseCode();
+			if (response == 200) {
+				deleteAccepted(batch, readResponseBody(connection));
+			}
+			return response;
+		} finally {
+			connection.disconnect();
+		}
+	}
+	
+	/** Deletes the files named in the server's "accepted" list, ignoring names that were not in this batch. */
+	private static void deleteAccepted (List<File> batch, String responseBody) throws IOException {
+		List<String> accepted = new ArrayList<String>();
+		try {
+			JSONArray acceptedJSON = new JSONObject(responseBody).getJSONArray("accepted");
+			for (int i = 0; i < acceptedJSON.length(); i++) {
+				accepted.add(acceptedJSON.getString(i));
+			}
+		} catch (JSONException e) {
+			throw new IOException("batch upload response did not list accepted files: " + e.getMessage());
+		}
+		List<String> toDelete = new ArrayList<String>(accepted.size());
+		for (File file : batch) {
+			if (accepted.contains(file.getName())) {
+				toDelete.add(file.getName());
+			}
+		}
+		if (toDelete.size() < batch.size()) {
+			Log.w("UploadBatcher", "server accepted " + toDelete.size() + " of " + batch.size() + " batched files");
+		}
+		TextFileManager.delete(toDelete);
+	}
+	
+	private static void writeField (ByteArrayOutputStream out, String boundary, String name, String value) throws IOException {
+		out.write(( "--" + boundary + LINE_END
+				+ "Content-Disposition: form-data; name=\"" + name + "\"" + LINE_END + LINE_END
+				+ value + LINE_END ).getBytes());
+	}
+	
+	private static void copyFile (File file, long length, OutputStream request, byte[] buffer) throws IOException {
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			long remaining = length;
+			while (remaining > 0) {
+				int count = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (count == -1) {
+					throw new IOException("file " + file.getName() + " shrank during upload");
+				}
+				request.write(buffer, 0, count);
+				remaining -= count;
+			}
+		} finally {
+			inputStream.close();
+		}
+	}
+	
+	private static String readResponseBody (HttpsURLConnection connection) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+		try {
+			StringBuilder body = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) { body.append(line); }
+			return body.toString();
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private static String newBoundary () {
+		byte[] random = new byte[12];
+		new SecureRandom().nextBytes(random);
+		StringBuilder boundary = new StringBuilder("beiwe-batch-");
+		for (byte b : random) { boundary.append(String.format("%02x", b)); }
+		return boundary.toString();
+	}
+}
@@ -0,0 +1,121 @@
+package org.beiwe.app.networking;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.UploadManifest;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**Decides the order in which PostRequest uploads the backlog of files.
+ * Files are grouped into priority classes by data stream, lower numbers go first.  By default survey data
+ * goes first, then GPS, calls and texts, then the other sensors and logs, then audio.  The study can
+ * override the priority of any stream with the "upload_priorities" device setting, a JSON object mapping
+ * stream names (e.g. "gps", "surveyAnswers", "ambientAudio") to integers.
+ * Within a class files go oldest first (by creation time), but each MB of file size counts as SIZE_PENALTY of age so that a
+ * large file does not hold up a crowd of slightly newer small ones. */
+public class UploadScheduler {
+	
+	private static final int DEFAULT_PRIORITY = 2;
+	private static final long SIZE_PENALTY = 60 * 1000; //value is in milliseconds of age per MB of file size
+	private static final Map<String, Integer> DEFAULT_PRIORITIES = new HashMap<String, Integer>();
+	static {
+		DEFAULT_PRIORITIES.put("surveyAnswers", 0);
+		DEFAULT_PRIORITIES.put("surveyTimings", 0);
+		DEFAULT_PRIORITIES.put("gps", 1);
+		DEFAULT_PRIORITIES.put("callLog", 1);
+		DEFAULT_PRIORITIES.put("textsLog", 1);
+		DEFAULT_PRIORITIES.put("accel", 2);
+		DEFAULT_PRIORITIES.put("gyro", 2);
+		DEFAULT_PRIORITIES.put("powerState", 2);
+		DEFAULT_PRIORITIES.put("bluetoothLog", 2);
+		DEFAULT_PRIORITIES.put("wifiLog", 2);
+		DEFAULT_PRIORITIES.put("logFile", 2);
+		DEFAULT_PRIORITIES.put("ambientAudio", 3);
+		DEFAULT_PRIORITIES.put("voiceRecording", 3);
+	}
+	
+	/**@param fileNames the files waiting to be uploaded.
+	 * @return the same files, as a list of priority classes in upload order, each class in upload order. */
+	static List<List<String>> plan (Context appContext, String[] fileNames) {
+		Map<String, Integer> priorities = getPriorities();
+		TreeMap<Integer, List<ScheduledFile>> classes = new TreeMap<Integer, List<ScheduledFile>>();
+		for (String fileName : fileNames) {
+			ScheduledFile file = new ScheduledFile(appContext, fileName);
+			Integer priority = priorities.get(file.stream);
+			if (priority == null) { priority = DEFAULT_PRIORITY; }
+			List<ScheduledFile> priorityClass = classes.get(priority);
+			if (priorityClass == null) {
+				priorityClass = new ArrayList<ScheduledFile>();
+				classes.put(priority, priorityClass);
+			}
+			priorityClass.add(file);
+		}
+		
+		List<List<String>> plan = new ArrayList<List<String>>(classes.size());
+		for (List<ScheduledFile> priorityClass : classes.values()) {
+			Collections.sort(priorityClass, BY_SCORE);
+			List<String> names = new ArrayList<String>(priorityClass.size());
+			for (ScheduledFile file : priorityClass) { names.add(file.name); }
+			plan.add(names);
+		}
+		return plan;
+	}
+	
+	/** @return the default priorities, with the study's overrides applied. */
+	private static Map<String, Integer> getPriorities () {
+		Map<String, Integer> priorities = new HashMap<String, Integer>(DEFAULT_PRIORITIES);
+		String overrides = PersistentData.getUploadPriorities();
+		if (overrides == null) {
+			return priorities;
+		}
+		try {
+			JSONObject overridesJSON = new JSONObject(overrides);
+			for (Iterator<String> streams = overridesJSON.keys(); streams.hasNext(); ) {
+				String stream = streams.next();
+				priorities.put(stream, overridesJSON.getInt(stream));
+			}
+		} catch (JSONException e) {
+			Log.e("UploadScheduler", "invalid upload priorities, using defaults: " + e.getMessage());
+			return new HashMap<String, Integer>(DEFAULT_PRIORITIES);
+		}
+		return priorities;
+	}
+	
+	/** A file's stream and score, taken from the UploadManifest so that planning needs no filesystem calls. */
+	private static class ScheduledFile {
+		final String name;
+		final String stream;
+		final long score;
+		
+		ScheduledFile (Context appContext, String name) {
+			this.name = name;
+			UploadManifest.Entry entry = UploadManifest.getEntry(name);
+			if (entry != null) {
+				this.stream = entry.stream;
+				this.score = entry.createdTime + (entry.size * SIZE_PENALTY) / (1024 * 1024);
+			} else {
+				File file = new File(appContext.getFilesDir(), name);
+				this.stream = UploadManifest.streamName(name);
+				this.score = file.lastModified() + (file.length() * SIZE_PENALTY) / (1024 * 1024);
+			}
+		}
+	}
+	
+	private static final Comparator<ScheduledFile> BY_SCORE = new Comparator<ScheduledFile>() {
+		@Override public int compare (ScheduledFile first, ScheduledFile second) {
+			return first.score < second.score ? -1 : (first.score == second.score ? 0 : 1);
+		}
+	};
+}
@@ -0,0 +1,51 @@
+package org.beiwe.app.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.security.spec.InvalidKeySpecException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**An AES encryptor prepared for a single key.
+ * TextFileManager holds one for the life of each file so that the key spec is built once per file
+ * rather than once per line.  Output is identical to EncryptionEngine.encryptAES with the same key.
+ * Instances are immutable and may be shared between threads, the cipher itself comes from a per-thread
+ * cache in the EncryptionEngine. */
+public class AESEncryptor {
+	private final byte[] aesKey;
+	private final SecretKeySpec keySpec;
+	
+	/** @param aesKey A byte array, must contain 128 bits, used as the AES key. */
+	public AESEncryptor (byte[] aesKey) {
+		this.aesKey = aesKey;
+		this.keySpec = new SecretKeySpec(aesKey, "AES");
+	}
+	
+	/** @return the raw AES key, as it should be RSA encrypted into the file header. */
+	public byte[] getKey () { return this.aesKey; }
+	
+	/**@param plainText Any plain text data.
+	 * @return a string containing colon separated url-safe Base64 encoded data. First value is the Initialization Vector, second is the encrypted data. */
+	public String encrypt (String plainText) throws InvalidKeyException, InvalidKeySpecException {
+		return EncryptionEngine.encryptAES(plainText.getBytes(), this.keySpec);
+	}
+	
+	public String encrypt (byte[] plainText) throws InvalidKeyException, InvalidKeySpecException {
+		return EncryptionEngine.encryptAES(plainText, this.keySpec);
+	}
+	
+	/** Encrypts length bytes of plainText starting at offset, see CsvRowEncoder. */
+	public String encrypt (byte[] plainText, int offset, int length) throws InvalidKeyException, InvalidKeySpecException {
+		return EncryptionEngine.encryptAES(plainText, offset, length, this.keySpec);
+	}
+	
+	/**Streaming version of encrypt, for data that should not be held in memory all at once.
+	 * Writes the Base64 IV and the colon separator to the provided stream immediately, data written to the
+	 * returned stream is encrypted and Base64 encoded into the provided stream as it arrives.  The result is
+	 * the same single line encrypt would produce, without the trailing newline.
+	 * Closing the returned stream finishes the encryption, it does not close the provided stream. */
+	public OutputStream encryptingStream (OutputStream out) throws InvalidKeyException, InvalidKeySpecException, IOException {
+		return EncryptionEngine.encryptAESStream(out, this.keySpec);
+	}
+}
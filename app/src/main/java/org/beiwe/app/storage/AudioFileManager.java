@@ -5,16 +5,20 @@ import android.util.Log;
 
 import org.beiwe.app.CrashHandler;
 
-import java.io.DataInputStream;
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.InvalidKeyException;
 import java.security.spec.InvalidKeySpecException;
 
 public class AudioFileManager {
+	
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024; //value is in bytes
 
 	public static void delete(String fileName) { TextFileManager.delete(fileName); }
 	
@@ -32,69 +36,63 @@ public class AudioFileManager {
     }
 
     /** Reads in the existing temporary audio file and encrypts it. Generates AES keys as needed.
-     * Behavior is to spend as little time writing the file as possible, at the expense of memory.*/
+     * The file is streamed through the cipher in STREAM_BUFFER_SIZE pieces, so memory use does not depend on
+     * the length of the recording.  The output is the usual two lines: the RSA encrypted AES key, then IV:ciphertext. */
 	public static void encryptAudioFile(String unencryptedTempAudioFilePath, String filename, Context appContext) {
 		if (unencryptedTempAudioFilePath != null) {
 			// If the audio file has been written to, encrypt the audio file
-			byte[] aesKey = EncryptionEngine.newAESKey();
-			String encryptedRSA = null;
-			String encryptedAudio = null;
-			try{encryptedRSA = EncryptionEngine.encryptRSA( aesKey ); 
-				encryptedAudio = EncryptionEngine.encryptAES( readInAudioFile(unencryptedTempAudioFilePath, appContext), aesKey ); }
+			AESEncryptor encryptor = new AESEncryptor( EncryptionEngine.newAESKey() );
+			InputStream inStream = null;
+			OutputStream outStream = null;
+			boolean succeeded = false;
+			long createdTime = System.currentTimeMillis();
+			try {
+				String encryptedRSA = EncryptionEngine.encryptRSA( encryptor.getKey() );
+				inStream = new FileInputStream( unencryptedTempAudioFilePath );
+				outStream = new BufferedOutputStream( appContext.openFileOutput(filename, Context.MODE_APPEND), STREAM_BUFFER_SIZE );
+				outStream.write( encryptedRSA.getBytes() );
+				outStream.write( '\n' );
+				
+				OutputStream encryptingStream = encryptor.encryptingStream( outStream );
+				byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+				int count;
+				while ( (count = inStream.read(buffer)) != -1 ) {
+					encryptingStream.write(buffer, 0, count);
+				}
+				encryptingStream.close();
+				outStream.write( '\n' );
+				outStream.flush();
+				succeeded = true; }
 			catch (InvalidKeySpecException e) {
 				Log.e("AudioFileManager", "encrypted write operation to the audio file without a keyFile.");
 				CrashHandler.writeCrashlog(e, appContext); }
 	        catch (InvalidKeyException e) {
 	        	Log.e("AudioFileManager", "encrypted write operation to the audio file without an aes key? how is that even...");
 	        	CrashHandler.writeCrashlog(e, appContext); }
-			writePlaintext( encryptedRSA, filename, appContext );
-			writePlaintext( encryptedAudio, filename, appContext );
+			catch (FileNotFoundException e) {
+				Log.e("AudioRecording", "file " + unencryptedTempAudioFilePath + " or " + filename + " could not be opened");
+				e.printStackTrace();
+				CrashHandler.writeCrashlog(e, appContext); }
+			catch (IOException e) {
+				Log.e("AudioRecording", "error in the write operation: " + e.getMessage() );
+				e.printStackTrace();
+				CrashHandler.writeCrashlog(e, appContext); }
+			finally {
+				closeQuietly(inStream);
+				closeQuietly(outStream);
+				// a partially encrypted file cannot be decrypted, don't leave it around to be uploaded.
+				if (succeeded) { UploadManifest.fileClosed(filename, createdTime); }
+				else { delete(filename); }
+			}
 		}
 	}
-
 	
-    /** Writes string data to a the audio file. */
-	public static synchronized void writePlaintext(String data, String outputFileName, Context appContext){
-		FileOutputStream outStream;
-		try {  //We use MODE_APPEND because... we know it works.
-			outStream = appContext.openFileOutput(outputFileName, Context.MODE_APPEND);
-			outStream.write( ( data ).getBytes() );
-			outStream.write( "\n".getBytes() );
-			outStream.flush();
-			outStream.close(); }
-		catch (FileNotFoundException e) {
-			Log.e("AudioRecording", "could not find file to write to, " + outputFileName);
-			e.printStackTrace();
-			CrashHandler.writeCrashlog(e, appContext); }
-		catch (IOException e) {
-			Log.e("AudioRecording", "error in the write operation: " + e.getMessage() );
-			e.printStackTrace();
-			CrashHandler.writeCrashlog(e, appContext); }
-	}
-    
-	
-	/** Reads a byte array of the current temp audio file's contents.
-	 * @return byte array of file contents. */
-	public static synchronized byte[] readInAudioFile(String unencryptedTempAudioFilePath, Context appContext) {
-		DataInputStream dataInputStream;
-		byte[] data = null;
-		File file = new File(unencryptedTempAudioFilePath);
-		try {  //Read the (data) input stream, into a bytearray.  Catch exceptions.
-			dataInputStream = new DataInputStream( new FileInputStream( file ) );
-			data = new byte[ (int) file.length() ];
-			try{ dataInputStream.readFully(data); }
-			catch (IOException e) {
-				Log.e("DataFileManager", "error reading " + unencryptedTempAudioFilePath);
-				CrashHandler.writeCrashlog(e, appContext); }
-			dataInputStream.close(); }
-		catch (FileNotFoundException e) {
-			Log.e("AudioRecording", "file " + unencryptedTempAudioFilePath + " does not exist");
-			CrashHandler.writeCrashlog(e, appContext); }
-		catch (IOException e) {
-			Log.e("AudioRecording", "could not close " + unencryptedTempAudioFilePath);
-			CrashHandler.writeCrashlog(e, appContext); }
-		return data;
+	private static void closeQuietly(Closeable stream) {
+		if (stream == null) { return; }
+		try { stream.close(); }
+		catch (IOException e) { e.printStackTrace(); }
 	}
+
 	
 	/** Used to transform a raw recording file into a wav file.
 	 * @param inFilename File name of the raw file
@@ -0,0 +1,125 @@
+package org.beiwe.app.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**Constants describing the "v2" block encrypted data file format.
+ * This class has no Android dependencies so that it can be shared with the BlockFileDecoder in the tools module.
+ * 
+ * A legacy data file is a line holding the RSA encrypted AES key, followed by one "IV:ciphertext"
+ * line per CSV row.  A v2 file amortizes the per-line overhead by encrypting many rows at once:
+ *   line 1: the RSA encrypted AES key (unchanged).
+ *   line 2: the plaintext format line, VERSION_LINE, optionally followed by space separated key=value options.
+ *   line 3+: one "IV:ciphertext" line (url-safe Base64) per block.  The plaintext of a block is a run
+ *            of complete CSV rows, each terminated by a newline.  The first block starts with the CSV header.
+ * A block is sealed when it reaches MAX_BLOCK_BYTES or MAX_BLOCK_ROWS, when its oldest row is older
+ * than MAX_BLOCK_AGE, and whenever the file is flushed, rotated or closed.
+ * 
+ * Key sessions: when the format line has the KEY_SESSION_OPTION, line 1 holds the RSA encrypted key of
+ * that session rather than a key for this file alone.  The file's AES key is derived from the session key
+ * and the file's KEY_SALT_OPTION value with deriveFileKey.
+ * 
+ * Compression: when the format line has COMPRESSION_OPTION=DEFLATE_COMPRESSION each block's plaintext is
+ * compressed with zlib (see deflate) before it is encrypted. */
+public class BlockFileFormat {
+	public static final String VERSION_LINE = "beiwe_block_v2";
+	
+	public static final String KEY_SESSION_OPTION = "key_session";
+	public static final String KEY_SALT_OPTION = "key_salt";
+	public static final String COMPRESSION_OPTION = "compression";
+	public static final String DEFLATE_COMPRESSION = "deflate";
+	
+	public static final int MAX_BLOCK_BYTES = 64 * 1024;
+	public static final int MAX_BLOCK_ROWS = 4096;
+	public static final long MAX_BLOCK_AGE = 60 * 1000; //value is in milliseconds
+	
+	private static final String FILE_KEY_INFO = "beiwe data file key";
+	private static final int FILE_KEY_LENGTH = 16; //value is in bytes, AES-128
+	
+	/** @return whether a line is the v2 format line. */
+	public static boolean isVersionLine (String line) {
+		return line != null && line.startsWith(VERSION_LINE);
+	}
+	
+	/** @return the key=value options of a format line, empty if there are none. */
+	public static Map<String, String> parseOptions (String versionLine) {
+		Map<String, String> options = new HashMap<String, String>();
+		String[] tokens = versionLine.trim().split(" +");
+		for (int i = 1; i < tokens.length; i++) {
+			int equals = tokens[i].indexOf('=');
+			if (equals > 0) {
+				options.put(tokens[i].substring(0, equals), tokens[i].substring(equals + 1));
+			}
+		}
+		return options;
+	}
+	
+	/** Compresses a block's plaintext, the output is a standard zlib stream. */
+	public static byte[] deflate (byte[] data) {
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				compressed.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return compressed.toByteArray();
+		} finally {
+			deflater.end(); //releases the native zlib state immediately instead of at finalization.
+		}
+	}
+	
+	/** Reverses deflate. */
+	public static byte[] inflate (byte[] data) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			ByteArrayOutputStream decompressed = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("truncated compressed block");
+				}
+				decompressed.write(buffer, 0, count);
+			}
+			return decompressed.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt compressed block: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	/**Derives a file's AES key from its session key with HKDF-SHA256 (RFC 5869).
+	 * @param sessionKey the session's AES key, the HKDF input keying material.
+	 * @param salt the file's random salt. */
+	public static byte[] deriveFileKey (byte[] sessionKey, byte[] salt) throws GeneralSecurityException {
+		try {
+			Mac hmac = Mac.getInstance("HmacSHA256");
+			// extract
+			hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+			byte[] pseudoRandomKey = hmac.doFinal(sessionKey);
+			// expand, a single round provides 32 bytes which is more than we need
+			hmac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+			hmac.update(FILE_KEY_INFO.getBytes("UTF-8"));
+			hmac.update((byte) 1);
+			return Arrays.copyOf(hmac.doFinal(), FILE_KEY_LENGTH);
+		} catch (UnsupportedEncodingException e) { //not gonna happen
+			throw new GeneralSecurityException("UTF-8 is not supported", e);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package org.beiwe.app.storage;
+
+/**Builds a CSV row directly as bytes, in a buffer that is reused from row to row.
+ * Concatenating a row costs a boxed timestamp, a String per column, a StringBuilder and then a copy of the
+ * whole row in getBytes before it can be encrypted.  Rows built here are written with
+ * TextFileManager.writeRow, which hands the bytes straight to the encryptor.
+ * Text output is identical to string concatenation: integers are formatted here, floats and doubles go
+ * through a reused StringBuilder so that they keep Java's exact formatting.
+ * An encoder is not thread safe, each writer keeps its own. */
+public class CsvRowEncoder {
+
+	private static final int INITIAL_CAPACITY = 128;
+	// enough for Long.MIN_VALUE
+	private static final int MAX_LONG_CHARACTERS = 20;
+
+	private byte[] bytes = new byte[INITIAL_CAPACITY];
+	private int length = 0;
+	private final StringBuilder numberScratch = new StringBuilder(32);
+
+	/** Empties the row, the buffer is kept. */
+	public CsvRowEncoder reset() {
+		length = 0;
+		return this;
+	}
+
+	/** Appends TextFileManager.DELIMITER. */
+	public CsvRowEncoder delimiter() { return append(','); }
+
+	/** Appends a character, which must be ASCII (delimiters, newlines). */
+	public CsvRowEncoder append(char value) {
+		ensureCapacity(1);
+		bytes[length++] = (byte) value;
+		return this;
+	}
+
+	public CsvRowEncoder append(int value) { return append((long) value); }
+
+	/** Appends the decimal digits of value, with no allocation. */
+	public CsvRowEncoder append(long value) {
+		ensureCapacity(MAX_LONG_CHARACTERS);
+		if (value == 0) {
+			bytes[length++] = '0';
+			return this; }
+		// digits are worked out on the negative value so that Long.MIN_VALUE does not overflow.
+		if (value > 0) { value = -value; }
+		else { bytes[length++] = '-'; }
+		int end = length + digitCount(value);
+		int position = end;
+		while (value != 0) {
+			bytes[--position] = (byte) ('0' - (value % 10));
+			value /= 10; }
+		length = end;
+		return this;
+	}
+
+	/** Appends value exactly as String.valueOf(float) would write it. */
+	public CsvRowEncoder append(float value) {
+		numberScratch.setLength(0);
+		numberScratch.append(value);
+		return appendAscii(numberScratch);
+	}
+
+	/** Appends value exactly as String.valueOf(double) would write it. */
+	public CsvRowEncoder append(double value) {
+		numberScratch.setLength(0);
+		numberScratch.append(value);
+		return appendAscii(numberScratch);
+	}
+
+	/** Appends a string in the platform charset, as String.getBytes would encode it. */
+	public CsvRowEncoder append(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) >= 0x80) { return appendBytes(value.getBytes()); } }
+		return appendAscii(value);
+	}
+
+	/** Appends the bytes of another row. */
+	public CsvRowEncoder append(CsvRowEncoder row) {
+		ensureCapacity(row.length);
+		System.arraycopy(row.bytes, 0, bytes, length, row.length);
+		length += row.length;
+		return this;
+	}
+
+	/** @return the buffer holding the row, only the first length() bytes are part of it. */
+	public byte[] array() { return bytes; }
+
+	public int length() { return length; }
+
+	/** @return the row as a String, for logging. */
+	@Override
+	public String toString() { return new String(bytes, 0, length); }
+
+	/*###############################################################################
+	################################## Internals ####################################
+	###############################################################################*/
+
+	/** @param value a negative number.
+	 * @return the number of decimal digits in value. */
+	private static int digitCount(long value) {
+		int count = 1;
+		while (value <= -10) {
+			value /= 10;
+			count++; }
+		return count;
+	}
+
+	private CsvRowEncoder appendAscii(CharSequence value) {
+		ensureCapacity(value.length());
+		for (int i = 0; i < value.length(); i++) { bytes[length++] = (byte) value.charAt(i); }
+		return this;
+	}
+
+	private CsvRowEncoder appendBytes(byte[] value) {
+		ensureCapacity(value.length);
+		System.arraycopy(value, 0, bytes, length, value.length);
+		length += value.length;
+		return this;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (length + additional <= bytes.length) { return; }
+		byte[] larger = new byte[Math.max(bytes.length * 2, length + additional)];
+		System.arraycopy(bytes, 0, larger, 0, length);
+		bytes = larger;
+	}
+}
@@ -2,6 +2,7 @@ package org.beiwe.app.storage;
 
 import android.annotation.SuppressLint;
 import android.util.Base64;
+import android.util.Base64OutputStream;
 import android.util.Log;
 
 import org.spongycastle.crypto.PBEParametersGenerator;
@@ -9,6 +10,9 @@ import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -19,9 +23,20 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
@@ -37,6 +52,29 @@ public class EncryptionEngine {
 	
 	private static PublicKey RSAkey = null;
 	
+	// Batch identifier hashing (hashMACs) uses one thread per core.
+	private static final int HASHING_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+	private static ExecutorService hashingExecutor = null;
+	
+	// A single long-lived SecureRandom supplies keys and IVs. It seeds itself once, nextBytes does not block
+	// on the entropy pool the way generateSeed does.
+	private static final SecureRandom secureRandom = new SecureRandom();
+	
+	// Cipher.getInstance is expensive, so each thread keeps an AES cipher and re-initializes it for each IV.
+	private static final ThreadLocal<Cipher> aesCipher = new ThreadLocal<Cipher>() {
+		@Override protected Cipher initialValue() {
+			try { return Cipher.getInstance("AES/CBC/PKCS5Padding"); }
+			catch (NoSuchAlgorithmException e) { // seems unlikely and should fail at the previous AES
+				Log.e("Encryption Engine", "device does not know what AES is, instance 2" );
+				e.printStackTrace();
+				throw new NullPointerException("device is too stupid to live"); }
+			catch (NoSuchPaddingException e) { //seems unlikely
+				Log.e("Encryption Engine", "device does not know what PKCS5 padding is" );
+				e.printStackTrace();
+				throw new NullPointerException("device is too stupid to live"); }
+		}
+	};
+	
 	/*############################################################################
 	 * ############################### Hashing ###################################
 	 * #########################################################################*/
@@ -84,6 +122,21 @@ public class EncryptionEngine {
 		return toBase64String(key.getKey());
 	}
 	
+	/** PBKDF2Hash, memoized in the IdentifierHashCache.
+	 * The cache key is an HMAC of the identifier under a per-process random key, see IdentifierHashCache.keyOf. */
+	private static String cachedPBKDF2Hash (String input) {
+		// make sure the salt and iteration count exist first, creating them invalidates the cache.
+		PersistentData.getHashSalt();
+		PersistentData.getHashIterations();
+		String key = IdentifierHashCache.keyOf(input);
+		String hash = IdentifierHashCache.get(key);
+		if (hash == null) {
+			hash = PBKDF2Hash(input);
+			IdentifierHashCache.put(key, hash);
+		}
+		return hash;
+	}
+	
 	/**Converts a phone number into a 64-character hexadecimal string.
 	 * First standardizes the phone numbers by grabbing the last 10 digits, so
 	 * that hopefully, two identical phone numbers will get identical hashes,
@@ -108,7 +161,7 @@ public class EncryptionEngine {
 		// Hash the last 10 digits
 
 		if (PersistentData.getUseAnonymizedHashing()) {
-			return PBKDF2Hash(last10);
+			return cachedPBKDF2Hash(last10);
 		}
 		else {
 			return safeHash(last10);
@@ -117,13 +170,62 @@ public class EncryptionEngine {
 
 	public static String hashMAC(String MAC) {
 		if (PersistentData.getUseAnonymizedHashing()) {
-			return PBKDF2Hash(MAC);
+			return cachedPBKDF2Hash(MAC);
 		}
 		else {
 			return safeHash(MAC);
 		}
 	}
 	
+	/**Hashes a batch of MAC addresses, spreading the PBKDF2 work across a small pool of threads.
+	 * Results are identical to calling hashMAC on each address, and are returned in the same order.
+	 * @param MACs a list of MAC addresses
+	 * @return a list of hashes, hashes.get(i) is the hash of MACs.get(i) */
+	public static List<String> hashMACs(List<String> MACs) {
+		List<String> hashes = new ArrayList<String>(MACs.size());
+		if (!PersistentData.getUseAnonymizedHashing() || MACs.size() < 2 || HASHING_THREAD_COUNT < 2) {
+			for (String MAC : MACs) { hashes.add(hashMAC(MAC)); }
+			return hashes;
+		}
+		// creating the salt and iteration count is not thread safe, so do it (if needed) before fanning out.
+		PersistentData.getHashSalt();
+		PersistentData.getHashIterations();
+		
+		List<Future<String>> futures = new ArrayList<Future<String>>(MACs.size());
+		for (final String MAC : MACs) {
+			futures.add(getHashingExecutor().submit(new Callable<String>() {
+				@Override public String call() { return cachedPBKDF2Hash(MAC); }
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			try { hashes.add(futures.get(i).get()); }
+			catch (InterruptedException e) { //we can still finish the work on this thread.
+				hashes.add(hashMAC(MACs.get(i))); }
+			catch (ExecutionException e) {
+				Log.e("Hashing function", "batch hashing failed: " + e.getCause());
+				if (e.getCause() instanceof RuntimeException) { throw (RuntimeException) e.getCause(); }
+				throw new NullPointerException("batch hashing failed: " + e.getCause()); }
+		}
+		return hashes;
+	}
+	
+	/** The hashing pool is created on first use, its threads exit when they have been idle for a while. */
+	private static synchronized ExecutorService getHashingExecutor() {
+		if (hashingExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(HASHING_THREAD_COUNT, HASHING_THREAD_COUNT,
+					30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "hashing_thread");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			hashingExecutor = executor;
+		}
+		return hashingExecutor;
+	}
+	
 	
 	/*############################################################################
 	 * ############################ Encryption ###################################
@@ -182,24 +284,25 @@ public class EncryptionEngine {
 	public static String encryptAES(String plainText, byte[] aesKey) throws InvalidKeyException, InvalidKeySpecException { return encryptAES( plainText.getBytes(), aesKey ); }
 	
 	public static String encryptAES(byte[] plainText, byte[] aesKey) throws InvalidKeyException, InvalidKeySpecException {
+		return encryptAES( plainText, new SecretKeySpec( aesKey, "AES" ) );
+	}
+	
+	/** Encrypts data with a prepared key spec, see AESEncryptor. */
+	static String encryptAES(byte[] plainText, SecretKeySpec secretKeySpec) throws InvalidKeyException, InvalidKeySpecException {
+		return encryptAES( plainText, 0, plainText.length, secretKeySpec );
+	}
+	
+	/** Encrypts length bytes of plainText starting at offset, for callers that reuse a larger buffer. */
+	static String encryptAES(byte[] plainText, int offset, int length, SecretKeySpec secretKeySpec) throws InvalidKeyException, InvalidKeySpecException {
 		if (RSAkey == null) readKey(); 
 		
 		//create an iv, 16 bytes of data
-		SecureRandom random = new SecureRandom();
-		IvParameterSpec ivSpec = new IvParameterSpec( random.generateSeed(16) );
+		byte[] iv = new byte[16];
+		secureRandom.nextBytes(iv);
+		IvParameterSpec ivSpec = new IvParameterSpec( iv );
 		
-		//initialize an AES encryption cipher, we are using CBC mode.
-		SecretKeySpec secretKeySpec = new SecretKeySpec( aesKey, "AES" );
-		Cipher cipher = null;
-		try { cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); }
-		catch (NoSuchAlgorithmException e) { // seems unlikely and should fail at the previous AES
-			Log.e("Encryption Engine", "device does not know what AES is, instance 2" );
-			e.printStackTrace();
-			throw new NullPointerException("device is too stupid to live"); }
-		catch (NoSuchPaddingException e) { //seems unlikely
-			Log.e("Encryption Engine", "device does not know what PKCS5 padding is" );
-			e.printStackTrace();
-			throw new NullPointerException("device is too stupid to live"); } 
+		//initialize this thread's AES encryption cipher, we are using CBC mode.
+		Cipher cipher = aesCipher.get();
 		try { cipher.init( Cipher.ENCRYPT_MODE, secretKeySpec, ivSpec ); }
 		catch (InvalidAlgorithmParameterException e) { //seems unlikely, iv generation failed?
 			Log.e("Encryption Engine", "InvalidAlgorithmParameterException during AES encryption..." );
@@ -207,8 +310,8 @@ public class EncryptionEngine {
 			throw new NullPointerException("InvalidAlgorithmParameterException during AES encryption..."); }
 		
 		//encrypt the data
-		try { return toBase64String( ivSpec.getIV() ) + ":" +
-					 toBase64String( cipher.doFinal( plainText ) ); }
+		try { return toBase64String( iv ) + ":" +
+					 toBase64String( cipher.doFinal( plainText, offset, length ) ); }
 		catch (IllegalBlockSizeException e) { //not possible, block size is coded to use the pkcs5 spec
 			Log.e("Encryption Engine", "an impossible error ocurred" );
 			e.printStackTrace(); 
@@ -219,6 +322,42 @@ public class EncryptionEngine {
 			throw new NullPointerException("an unknown error occured in AES encryption."); }
 	}
 	
+	/** Begins a streaming encryption with a prepared key spec, see AESEncryptor.encryptingStream. */
+	static OutputStream encryptAESStream(OutputStream out, SecretKeySpec secretKeySpec) throws InvalidKeyException, InvalidKeySpecException, IOException {
+		if (RSAkey == null) readKey();
+		
+		byte[] iv = new byte[16];
+		secureRandom.nextBytes(iv);
+		
+		// a stream can outlive any single encryptAES call on this thread, so it gets its own cipher.
+		Cipher cipher;
+		try { cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); }
+		catch (NoSuchAlgorithmException e) {
+			Log.e("Encryption Engine", "device does not know what AES is, instance 3" );
+			e.printStackTrace();
+			throw new NullPointerException("device is too stupid to live"); }
+		catch (NoSuchPaddingException e) {
+			Log.e("Encryption Engine", "device does not know what PKCS5 padding is" );
+			e.printStackTrace();
+			throw new NullPointerException("device is too stupid to live"); }
+		try { cipher.init( Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec( iv ) ); }
+		catch (InvalidAlgorithmParameterException e) {
+			Log.e("Encryption Engine", "InvalidAlgorithmParameterException during AES encryption..." );
+			e.printStackTrace();
+			throw new NullPointerException("InvalidAlgorithmParameterException during AES encryption..."); }
+		
+		out.write( toBase64Array( iv ) );
+		out.write( ':' );
+		return new CipherOutputStream( new Base64OutputStream( new UnclosableOutputStream( out ), Base64.NO_WRAP | Base64.URL_SAFE ), cipher );
+	}
+	
+	/** Passes writes through but only flushes on close, so that closing an encryption stream leaves the file open. */
+	private static class UnclosableOutputStream extends FilterOutputStream {
+		UnclosableOutputStream(OutputStream out) { super(out); }
+		@Override public void write(byte[] data, int offset, int length) throws IOException { out.write(data, offset, length); }
+		@Override public void close() throws IOException { out.flush(); }
+	}
+	
 	/* #######################################################################
 	 * ########################## Key Management #############################  
 	 * #####################################################################*/
@@ -245,8 +384,7 @@ public class EncryptionEngine {
 	/**Generates a new 128 bit AES Encryption key.
 	 * @return a byte array 128 bits long for use as an AES Encryption key*/
 	public static byte[] newAESKey() {
-		// setup seed and key generator
-		SecureRandom random = new SecureRandom();
+		// setup key generator
 		KeyGenerator aesKeyGen = null;
 		byte[] secretKey = null;
 		
@@ -260,7 +398,7 @@ public class EncryptionEngine {
 			}
 			
 			//from key generator, generate a key!
-			aesKeyGen.init( 128, random );
+			aesKeyGen.init( 128, secureRandom );
 			secretKey = aesKeyGen.generateKey().getEncoded();
 			
             // helper code for debugging 0 values
@@ -0,0 +1,160 @@
+package org.beiwe.app.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**XOR delta compression of a column of floats, after Facebook's Gorilla time series paper, adapted to 32 bits.
+ * Consecutive accelerometer and gyroscope readings share their sign, exponent and high mantissa bits, so the
+ * XOR of a value with the previous one is mostly zeros and only its "meaningful" middle bits are stored:
+ *   the first value:                     32 raw bits
+ *   XOR is zero (a repeated value):      '0'
+ *   meaningful bits fit in the previous
+ *   value's leading/trailing zero window: '10' then the bits inside that window
+ *   otherwise:                           '11', 5 bits of leading zero count, 5 bits of (meaningful bit count - 1),
+ *                                        then the meaningful bits
+ * Bits are written most significant first and a finished column is padded to a whole byte.  No Android
+ * dependencies, this is shared with the BlockFileDecoder in the tools module; see ImuBlockFormat for how
+ * columns are laid out. */
+public class GorillaFloatCodec {
+
+	/**Encodes floats into a stream, one column at a time.  Not thread safe. */
+	public static class Encoder {
+		private final ByteArrayOutputStream out;
+		private int currentByte = 0;
+		private int bitsInCurrentByte = 0;
+		private boolean first = true;
+		private int previousBits = 0;
+		private int previousLeading = -1;
+		private int previousTrailing = 0;
+
+		/** @param out where encoded bytes go, they are written as each byte fills. */
+		public Encoder (ByteArrayOutputStream out) { this.out = out; }
+
+		public void write (float value) {
+			int bits = Float.floatToRawIntBits(value);
+			if (first) {
+				writeBits(bits, 32);
+				first = false;
+			} else {
+				int xor = bits ^ previousBits;
+				if (xor == 0) {
+					writeBits(0, 1);
+				} else {
+					int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+					int trailing = Integer.numberOfTrailingZeros(xor);
+					if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+						writeBits(2, 2);
+						writeBits(xor >>> previousTrailing, 32 - previousLeading - previousTrailing);
+					} else {
+						int meaningful = 32 - leading - trailing;
+						writeBits(3, 2);
+						writeBits(leading, 5);
+						writeBits(meaningful - 1, 5);
+						writeBits(xor >>> trailing, meaningful);
+						previousLeading = leading;
+						previousTrailing = trailing;
+					}
+				}
+			}
+			previousBits = bits;
+		}
+
+		/** Pads the column to a whole byte and makes the encoder ready for the next column. */
+		public void finish () {
+			if (bitsInCurrentByte > 0) {
+				out.write(currentByte << (8 - bitsInCurrentByte));
+			}
+			currentByte = 0;
+			bitsInCurrentByte = 0;
+			first = true;
+			previousLeading = -1;
+			previousTrailing = 0;
+		}
+
+		/** Writes the low count bits of value, count is 1 to 32. */
+		private void writeBits (int value, int count) {
+			while (count > 0) {
+				int take = Math.min(count, 8 - bitsInCurrentByte);
+				int chunk = (value >>> (count - take)) & ((1 << take) - 1);
+				currentByte = (currentByte << take) | chunk;
+				bitsInCurrentByte += take;
+				count -= take;
+				if (bitsInCurrentByte == 8) {
+					out.write(currentByte);
+					currentByte = 0;
+					bitsInCurrentByte = 0;
+				}
+			}
+		}
+	}
+
+	/**Decodes a column written by an Encoder.  Not thread safe. */
+	public static class Decoder {
+		private final byte[] data;
+		private int position;
+		private int bitPosition = 0;
+		private boolean first = true;
+		private int previousBits = 0;
+		private int previousLeading = -1;
+		private int previousTrailing = 0;
+
+		/** @param offset the index of the column's first byte in data. */
+		public Decoder (byte[] data, int offset) {
+			this.data = data;
+			this.position = offset;
+		}
+
+		public float read () throws IOException {
+			int bits;
+			if (first) {
+				bits = readBits(32);
+				first = false;
+			} else if (readBits(1) == 0) {
+				bits = previousBits;
+			} else if (readBits(1) == 0) {
+				if (previousLeading < 0) {
+					throw new IOException("corrupt float column, window reused before it was set");
+				}
+				int meaningful = 32 - previousLeading - previousTrailing;
+				bits = previousBits ^ (readBits(meaningful) << previousTrailing);
+			} else {
+				int leading = readBits(5);
+				int meaningful = readBits(5) + 1;
+				int trailing = 32 - leading - meaningful;
+				if (trailing < 0) {
+					throw new IOException("corrupt float column, window larger than a float");
+				}
+				bits = previousBits ^ (readBits(meaningful) << trailing);
+				previousLeading = leading;
+				previousTrailing = trailing;
+			}
+			previousBits = bits;
+			return Float.intBitsToFloat(bits);
+		}
+
+		/** @return the index of the byte after the column, once every value has been read. */
+		public int finish () {
+			return bitPosition == 0 ? position : position + 1;
+		}
+
+		/** Reads count bits, count is 1 to 32. */
+		private int readBits (int count) throws IOException {
+			int value = 0;
+			while (count > 0) {
+				if (position >= data.length) {
+					throw new IOException("truncated float column");
+				}
+				int take = Math.min(count, 8 - bitPosition);
+				int chunk = (data[position] >>> (8 - bitPosition - take)) & ((1 << take) - 1);
+				value = (value << take) | chunk;
+				bitPosition += take;
+				count -= take;
+				if (bitPosition == 8) {
+					position++;
+					bitPosition = 0;
+				}
+			}
+			return value;
+		}
+	}
+}
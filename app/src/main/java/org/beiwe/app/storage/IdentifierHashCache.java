@@ -0,0 +1,83 @@
+package org.beiwe.app.storage;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**A bounded, least-recently-used memo of PBKDF2 identifier hashes.
+ * The same few hundred MAC addresses and phone numbers are hashed over and over (every Bluetooth
+ * advertisement, every Wi-Fi scan, every call and text), and each PBKDF2 hash costs around a thousand
+ * rounds of SHA-256.
+ * Entries are keyed by an HMAC-SHA256 of the identifier under a random key made once per process, see keyOf,
+ * so the cache never holds raw MAC addresses or phone numbers.  An unsalted hash would not do: there are only
+ * 2^48 MAC addresses and 10^10 ten digit phone numbers, both are quick to enumerate.  The HMAC key is only
+ * ever in memory, so someone holding the whole process heap could still test guesses against the keys; it
+ * keeps the cache from being more revealing than the values, which are the anonymized hashes we write to
+ * data files anyway.
+ * The cache must be invalidated whenever the PBKDF2 salt or iteration count changes, PersistentData does this. */
+public class IdentifierHashCache {
+	
+	private static final int CAPACITY = 1024;
+	
+	private static final LinkedHashMap<String, String> cache = new LinkedHashMap<String, String>(CAPACITY, 0.75f, true) {
+		@Override protected boolean removeEldestEntry(Map.Entry<String, String> eldest) { return size() > CAPACITY; }
+	};
+	
+	private static long hitCount = 0;
+	private static long missCount = 0;
+	
+	private static final SecretKeySpec hmacKey = makeHmacKey();
+	// Mac.getInstance is expensive and a Mac is not thread safe, so each hashing thread keeps its own.
+	private static final ThreadLocal<Mac> hmac = new ThreadLocal<Mac>() {
+		@Override protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(hmacKey);
+				return mac; }
+			catch (NoSuchAlgorithmException e) { throw new NullPointerException("device does not know what HmacSHA256 is"); }
+			catch (InvalidKeyException e) { throw new NullPointerException("HmacSHA256 rejected a random 256 bit key"); }
+		} };
+	
+	/** @return the cache key of an identifier, an HMAC of it under this process's random key. */
+	static String keyOf(String identifier) {
+		try {
+			// ISO-8859-1 maps each byte of the HMAC to one char, this is just a compact map key.
+			return new String(hmac.get().doFinal(identifier.getBytes("UTF-8")), "ISO-8859-1"); }
+		catch (UnsupportedEncodingException e) { throw new NullPointerException("device does not know UTF-8"); }
+	}
+	
+	private static SecretKeySpec makeHmacKey() {
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		return new SecretKeySpec(key, "HmacSHA256");
+	}
+	
+	/** @return the cached hash for the key, or null (and a miss is counted). */
+	static synchronized String get(String key) {
+		String hash = cache.get(key);
+		if (hash == null) { missCount++; }
+		else { hitCount++; }
+		return hash;
+	}
+	
+	static synchronized void put(String key, String hash) { cache.put(key, hash); }
+	
+	/** Drops every cached hash, call this when the hashing parameters change. */
+	public static synchronized void invalidate() { cache.clear(); }
+	
+	public static synchronized long getHitCount() { return hitCount; }
+	
+	public static synchronized long getMissCount() { return missCount; }
+	
+	/** @return the fraction of lookups that were served from the cache, 0 if there have been none. */
+	public static synchronized double getHitRate() {
+		long lookups = hitCount + missCount;
+		return lookups == 0 ? 0 : (double) hitCount / lookups;
+	}
+}
@@ -0,0 +1,267 @@
+package org.beiwe.app.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**The binary columnar block encoding for accelerometer and gyroscope files, an option of the v2 block format.
+ * Like BlockFileFormat this has no Android dependencies so that it can be shared with the BlockFileDecoder
+ * in the tools module.
+ *
+ * IMU rows are timestamp,accuracy,x,y,z, and as CSV they are mostly ASCII digits.  When a block format file's
+ * format line has ENCODING_OPTION=IMU_BINARY_ENCODING:
+ *   - the first block holds the CSV header (with its newline) as text, exactly as in a CSV block file.
+ *   - every following block is one binary block of samples in the layout given by the SCHEMA_OPTION.
+ *   - the FLOAT_TEXT_OPTION records how the stream wrote floats as CSV, so the converter can reproduce it.
+ * The layout of a binary block:
+ *   varint  sample count n
+ *   varint  zigzag encoded timestamp of the first sample (milliseconds), then n-1 zigzag encoded deltas
+ *   varint  number of accuracy runs r, then r pairs of (zigzag encoded accuracy, varint run length)
+ *   the x column, then the y column, then the z column, each holding n values in the float encoding:
+ *     FLOAT32_ENCODING: big-endian IEEE float32 values.
+ *     GORILLA_ENCODING: XOR delta compressed values padded to a whole byte, see GorillaFloatCodec.
+ * The schema option names the float encoding, see schema.  The encoding is chosen per stream.
+ * With float32 columns a sample takes about 14 bytes against 40 to 75 characters of CSV.  Blocks are encrypted
+ * (and optionally compressed) exactly like CSV blocks, so key sessions and compression work unchanged. */
+public class ImuBlockFormat {
+	public static final String ENCODING_OPTION = "encoding";
+	public static final String IMU_BINARY_ENCODING = "imu_binary";
+	public static final String SCHEMA_OPTION = "imu_schema";
+	public static final String FLOAT32_ENCODING = "float32";
+	public static final String GORILLA_ENCODING = "gorilla";
+	public static final String FLOAT_TEXT_OPTION = "float_text";
+	/* floats were written with String.valueOf(float) */
+	public static final String SHORTEST_FLOAT_TEXT = "shortest";
+	/* floats were written with String.format("%.16f") */
+	public static final String FIXED16_FLOAT_TEXT = "fixed16";
+
+	/* the accuracy of samples taken before the sensor reported one, written as "unknown" in CSV. */
+	public static final int ACCURACY_UNKNOWN = Integer.MIN_VALUE;
+
+	/** @return the options appended to the format line of an IMU binary file. */
+	public static String formatOptions (String floatEncoding, String floatText) {
+		return ENCODING_OPTION + "=" + IMU_BINARY_ENCODING + " " + SCHEMA_OPTION + "=" + schema(floatEncoding)
+				+ " " + FLOAT_TEXT_OPTION + "=" + floatText;
+	}
+
+	/** @return the schema of blocks whose float columns are in floatEncoding. */
+	public static String schema (String floatEncoding) {
+		return "timestamp:delta_varint,accuracy:rle,x:" + floatEncoding + ",y:" + floatEncoding + ",z:" + floatEncoding;
+	}
+
+	/** @return whether floatEncoding is one this version can write and read. */
+	public static boolean isFloatEncoding (String floatEncoding) {
+		return FLOAT32_ENCODING.equals(floatEncoding) || GORILLA_ENCODING.equals(floatEncoding);
+	}
+
+	/** @return the float encoding named by a schema option.
+	 * @throws IOException if the schema is not one this version can read. */
+	public static String floatEncodingOfSchema (String schema) throws IOException {
+		if (schema != null) {
+			if (schema.equals(schema(FLOAT32_ENCODING))) { return FLOAT32_ENCODING; }
+			if (schema.equals(schema(GORILLA_ENCODING))) { return GORILLA_ENCODING; }
+		}
+		throw new IOException("unknown IMU schema: " + schema);
+	}
+
+	/*###############################################################################
+	################################## Encoding #####################################
+	###############################################################################*/
+
+	/**Collects samples in columns until the block is sealed.  Reused from block to block, not thread safe. */
+	public static class BlockEncoder {
+		private long[] timestamps = new long[256];
+		private int[] accuracies = new int[256];
+		private float[] xs = new float[256];
+		private float[] ys = new float[256];
+		private float[] zs = new float[256];
+		private int size = 0;
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+		private final GorillaFloatCodec.Encoder gorilla = new GorillaFloatCodec.Encoder(out);
+
+		public void add (long timestamp, int accuracy, float x, float y, float z) {
+			if (size == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, size * 2);
+				accuracies = Arrays.copyOf(accuracies, size * 2);
+				xs = Arrays.copyOf(xs, size * 2);
+				ys = Arrays.copyOf(ys, size * 2);
+				zs = Arrays.copyOf(zs, size * 2);
+			}
+			timestamps[size] = timestamp;
+			accuracies[size] = accuracy;
+			xs[size] = x;
+			ys[size] = y;
+			zs[size] = z;
+			size++;
+		}
+
+		public int size () { return size; }
+
+		public void reset () { size = 0; }
+
+		/** @return the binary block of the samples added since the last reset.
+		 * @param floatEncoding FLOAT32_ENCODING or GORILLA_ENCODING, as named in the file's schema. */
+		public byte[] encode (String floatEncoding) {
+			out.reset();
+			writeVarint(out, size);
+			long previous = 0;
+			for (int i = 0; i < size; i++) {
+				writeVarint(out, zigzag(timestamps[i] - previous));
+				previous = timestamps[i];
+			}
+			int runCount = 0;
+			for (int i = 0; i < size; i++) {
+				if (i == 0 || accuracies[i] != accuracies[i - 1]) { runCount++; }
+			}
+			writeVarint(out, runCount);
+			for (int start = 0; start < size; ) {
+				int end = start + 1;
+				while (end < size && accuracies[end] == accuracies[start]) { end++; }
+				writeVarint(out, zigzag(accuracies[start]));
+				writeVarint(out, end - start);
+				start = end;
+			}
+			if (GORILLA_ENCODING.equals(floatEncoding)) {
+				writeGorillaFloats(xs);
+				writeGorillaFloats(ys);
+				writeGorillaFloats(zs);
+			} else {
+				writeFloats(out, xs, size);
+				writeFloats(out, ys, size);
+				writeFloats(out, zs, size);
+			}
+			return out.toByteArray();
+		}
+
+		private void writeGorillaFloats (float[] values) {
+			for (int i = 0; i < size; i++) { gorilla.write(values[i]); }
+			gorilla.finish();
+		}
+	}
+
+	private static void writeFloats (ByteArrayOutputStream out, float[] values, int count) {
+		for (int i = 0; i < count; i++) {
+			int bits = Float.floatToRawIntBits(values[i]);
+			out.write(bits >>> 24);
+			out.write(bits >>> 16);
+			out.write(bits >>> 8);
+			out.write(bits);
+		}
+	}
+
+	static void writeVarint (ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static long zigzag (long value) { return (value << 1) ^ (value >> 63); }
+
+	static long unzigzag (long value) { return (value >>> 1) ^ -(value & 1); }
+
+	/*###############################################################################
+	################################## Decoding #####################################
+	###############################################################################*/
+
+	/**Converts a binary block back to the CSV rows the legacy format would have held for the same samples,
+	 * each terminated by a newline.  Fixed decimal floats are written with Locale.ROOT, on a device whose
+	 * locale uses a decimal comma the legacy gyroscope CSV had commas in its values.
+	 * @param floatEncoding the float encoding of the file's schema, see floatEncodingOfSchema.
+	 * @param floatText the FLOAT_TEXT_OPTION of the file. */
+	public static void appendCsv (byte[] block, String floatEncoding, String floatText, StringBuilder csv) throws IOException {
+		boolean fixed16 = FIXED16_FLOAT_TEXT.equals(floatText);
+		if (!fixed16 && !SHORTEST_FLOAT_TEXT.equals(floatText)) {
+			throw new IOException("unknown IMU float text: " + floatText);
+		}
+		Reader reader = new Reader(block);
+		int size = (int) reader.readVarint();
+		if (size < 0 || size > block.length) {
+			throw new IOException("corrupt IMU block, impossible sample count " + size);
+		}
+		long[] timestamps = new long[size];
+		long previous = 0;
+		for (int i = 0; i < size; i++) {
+			previous += unzigzag(reader.readVarint());
+			timestamps[i] = previous;
+		}
+		int[] accuracies = new int[size];
+		int runCount = (int) reader.readVarint();
+		int filled = 0;
+		for (int run = 0; run < runCount; run++) {
+			int accuracy = (int) unzigzag(reader.readVarint());
+			int length = (int) reader.readVarint();
+			if (length < 0 || filled + length > size) {
+				throw new IOException("corrupt IMU block, accuracy runs overrun the samples");
+			}
+			Arrays.fill(accuracies, filled, filled + length, accuracy);
+			filled += length;
+		}
+		if (filled != size) {
+			throw new IOException("corrupt IMU block, accuracy runs do not cover the samples");
+		}
+		float[][] columns = new float[3][size];
+		for (int column = 0; column < 3; column++) {
+			if (GORILLA_ENCODING.equals(floatEncoding)) {
+				GorillaFloatCodec.Decoder decoder = new GorillaFloatCodec.Decoder(block, reader.position);
+				for (int i = 0; i < size; i++) { columns[column][i] = decoder.read(); }
+				reader.position = decoder.finish();
+			} else if (FLOAT32_ENCODING.equals(floatEncoding)) {
+				int start = reader.position;
+				reader.skip(size * 4);
+				for (int i = 0; i < size; i++) { columns[column][i] = Float.intBitsToFloat(readInt(block, start + i * 4)); }
+			} else {
+				throw new IOException("unknown IMU float encoding: " + floatEncoding);
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			csv.append(timestamps[i]).append(',');
+			if (accuracies[i] == ACCURACY_UNKNOWN) { csv.append("unknown"); }
+			else { csv.append(accuracies[i]); }
+			for (int column = 0; column < 3; column++) {
+				float value = columns[column][i];
+				csv.append(',');
+				if (fixed16) { csv.append(String.format(Locale.ROOT, "%.16f", value)); }
+				else { csv.append(value); }
+			}
+			csv.append('\n');
+		}
+	}
+
+	private static int readInt (byte[] data, int position) {
+		return ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16)
+				| ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+	}
+
+	/** Reads varints from a block, reporting truncation as an IOException. */
+	static class Reader {
+		private final byte[] data;
+		int position = 0;
+
+		Reader (byte[] data) { this.data = data; }
+
+		long readVarint () throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (position >= data.length) {
+					throw new IOException("truncated IMU block");
+				}
+				byte b = data[position++];
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("corrupt IMU block, varint too long");
+		}
+
+		void skip (int count) throws IOException {
+			if (count < 0 || position + count > data.length) {
+				throw new IOException("truncated IMU block");
+			}
+			position += count;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package org.beiwe.app.storage;
+
+import android.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+
+/**A key session spreads the cost of one RSA encryption across every file created in a rotation epoch.
+ * Each session has a random AES key that is RSA encrypted once.  Every file in the session carries that
+ * RSA encrypted session key as its first line, and gets its own AES key derived from the session key
+ * and a per-file salt, see BlockFileFormat.deriveFileKey.
+ * A new session is started whenever TextFileManager rotates all of its files.
+ * Key sessions are only used for v2 block format files, and only when the server has opted in. */
+public class KeySession {
+	
+	private static final int SALT_LENGTH = 16; //value is in bytes
+	private static final SecureRandom random = new SecureRandom();
+	private static KeySession currentSession = null;
+	
+	private final String sessionId;
+	private final byte[] sessionKey;
+	private final String encryptedSessionKey;
+	
+	private KeySession () throws InvalidKeySpecException {
+		byte[] idBytes = new byte[6];
+		random.nextBytes(idBytes);
+		this.sessionId = Base64.encodeToString(idBytes, Base64.NO_WRAP | Base64.URL_SAFE);
+		this.sessionKey = EncryptionEngine.newAESKey();
+		this.encryptedSessionKey = EncryptionEngine.encryptRSA(this.sessionKey);
+	}
+	
+	/** @return the current session, starting one if there is none. */
+	public static synchronized KeySession getCurrent () throws InvalidKeySpecException {
+		if (currentSession == null) {
+			currentSession = new KeySession();
+		}
+		return currentSession;
+	}
+	
+	/** Ends the current session, the next file created will start a new one. */
+	public static synchronized void rotate () {
+		currentSession = null;
+	}
+	
+	/** @return the RSA encrypted session key, this is the first line of every file in the session. */
+	public String getEncryptedSessionKey () { return this.encryptedSessionKey; }
+	
+	/**Starts a file in this session.
+	 * @return the file's encryptor, and the format line identifying the session and the file's salt. */
+	public FileKey newFileKey () {
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		byte[] fileKey;
+		try {
+			fileKey = BlockFileFormat.deriveFileKey(this.sessionKey, salt);
+		} catch (GeneralSecurityException e) { //HmacSHA256 is a required algorithm
+			e.printStackTrace();
+			throw new NullPointerException("device is too stupid to live, HmacSHA256 is unavailable: " + e.getMessage());
+		}
+		String versionLine = BlockFileFormat.VERSION_LINE
+				+ " " + BlockFileFormat.KEY_SESSION_OPTION + "=" + this.sessionId
+				+ " " + BlockFileFormat.KEY_SALT_OPTION + "=" + Base64.encodeToString(salt, Base64.NO_WRAP | Base64.URL_SAFE);
+		return new FileKey(new AESEncryptor(fileKey), versionLine);
+	}
+	
+	/** A file's derived key and the format line that lets the server derive it again. */
+	public static class FileKey {
+		public final AESEncryptor encryptor;
+		public final String versionLine;
+		
+		private FileKey (AESEncryptor encryptor, String versionLine) {
+			this.encryptor = encryptor;
+			this.versionLine = versionLine;
+		}
+	}
+}
@@ -29,6 +29,10 @@ public class PersistentData {
 	private static SharedPreferences pref;
 	private static Editor editor;
 	private static Context appContext;
+	// per thread, so that a batch only stages its own thread's writes; a write from any other thread still commits.
+	private static final ThreadLocal<int[]> batchDepth = new ThreadLocal<int[]>() {
+		@Override protected int[] initialValue() { return new int[1]; }
+	};
 	
 	/**  Editor key-strings */
 	private static final String PREF_NAME = "BeiwePref";
@@ -91,23 +95,62 @@ public class PersistentData {
 
 	private static void putCommit(String name, long l) {
 		editor.putLong(name, l);
-		editor.commit();
+		commitOrStage();
 	}
 	private static void putCommit(String name, boolean b) {
 		editor.putBoolean(name, b);
-		editor.commit();
+		commitOrStage();
 	}
 	private static void putCommit(String name, String s) {
 		editor.putString(name, s);
-		editor.commit();
+		commitOrStage();
 	}
 	private static void putCommit(String name, float f) {
 		editor.putFloat(name, f);
-		editor.commit();
+		commitOrStage();
 	}
 	private static void putCommit(String name, int i) {
 		editor.putInt(name, i);
-		editor.commit();
+		commitOrStage();
+	}
+	
+	/**For values that are cheap to lose if the process dies in the next few milliseconds (login
+	 * expiration, permission bookkeeping, in-progress survey answers).  apply() updates the in-memory
+	 * preferences immediately and writes to disk in the background, so the caller never blocks on an fsync. */
+	private static void putApply(String name, long l) {
+		editor.putLong(name, l);
+		editor.apply();
+	}
+	private static void putApply(String name, String s) {
+		editor.putString(name, s);
+		editor.apply();
+	}
+	
+	/**Every commit() rewrites the whole preferences file and fsyncs it on the calling thread, so a settings
+	 * sync or survey download that touches dozens of keys used to wait for dozens of full rewrites.  Between
+	 * beginBatch() and the matching commitBatch() this thread's writes use apply() instead: the change is in
+	 * memory at once (so reads inside the batch see it) and a write of the file is queued in the background.
+	 * Android skips a queued write once a newer one has replaced it, so a quick batch usually ends up as one
+	 * rewrite, but that is not guaranteed, a slow batch can still write the file several times.  What the
+	 * batch does guarantee is that the caller blocks on disk only once, at the outermost commitBatch(), whose
+	 * commit() makes everything durable.
+	 * The depth is per thread: a batch only defers this thread's commits, other threads keep committing.
+	 * The editor is shared, though, so a commit from another thread during the batch also writes whatever
+	 * this thread has staged so far.  Batches nest; always pair them with try/finally. */
+	public static void beginBatch() { batchDepth.get()[0]++; }
+	
+	public static synchronized void commitBatch() {
+		int[] depth = batchDepth.get();
+		if (depth[0] == 0) { throw new NullPointerException("commitBatch called without a matching beginBatch"); }
+		depth[0]--;
+		if (depth[0] == 0) { editor.commit(); }
+	}
+	
+	/**Commits now, unless this thread has a batch open, in which case the change is applied (in memory now,
+	 * on disk in the background) and made durable by the batch's commit. */
+	private static void commitOrStage() {
+		if (batchDepth.get()[0] > 0) { editor.apply(); }
+		else { editor.commit(); }
 	}
 	
 	/*#####################################################################################
@@ -123,7 +166,7 @@ public class PersistentData {
 
 	/** Set the login session to expire a fixed amount of time in the future */
 	public static void loginOrRefreshLogin() {
-		putCommit(LOGIN_EXPIRATION, System.currentTimeMillis() + getMillisecondsBeforeAutoLogout());
+		putApply(LOGIN_EXPIRATION, System.currentTimeMillis() + getMillisecondsBeforeAutoLogout());
 	}
 
 	/** Set the login session to "expired" */
@@ -142,7 +185,7 @@ public class PersistentData {
 	}
 
 	public static void setLastRequestedPermission(String value)  {
-		putCommit(LastRequestedPermission, value);
+		putApply(LastRequestedPermission, value);
 	}
 
 	public static String getLastRequestedPermission() {
@@ -421,7 +464,8 @@ public class PersistentData {
 	###################################### Survey Info ##########################################
 	###########################################################################################*/
 	
-	public static List<String> getSurveyIds() { return JSONUtils.jsonArrayToStringList(getSurveyIdsJsonArray()); }
+	/** @return the survey ids from the in-memory SurveyRegistry, the list is unmodifiable. */
+	public static List<String> getSurveyIds() { return SurveyRegistry.get().getSurveyIds(); }
 	public static List<String> getSurveyQuestionMemory(String surveyId) { return JSONUtils.jsonArrayToStringList(getSurveyQuestionMemoryJsonArray(surveyId)); }
 	public static String getSurveyTimes(String surveyId){ return pref.getString(surveyId + "-times", null); }
 	public static String getSurveyContent(String surveyId){ return pref.getString(surveyId + "-content", null); }
@@ -431,23 +475,31 @@ public class PersistentData {
 	public static long getMostRecentSurveyAlarmTime(String surveyId) { return pref.getLong( surveyId + "-prior_alarm", MAX_LONG); }
 	
 	public static void createSurveyData(String surveyId, String content, String timings, String type, String settings){
-		setSurveyContent(surveyId,  content);
-		setSurveyTimes(surveyId, timings);
-		setSurveyType(surveyId, type);
-		setSurveySettings(surveyId, settings);
+		beginBatch();
+		try {
+			setSurveyContent(surveyId,  content);
+			setSurveyTimes(surveyId, timings);
+			setSurveyType(surveyId, type);
+			setSurveySettings(surveyId, settings);
+		}
+		finally { commitBatch(); }
 	}
 	//individual setters
 	public static void setSurveyContent(String surveyId, String content){
 		putCommit(surveyId + "-content", content);
+		SurveyRegistry.invalidate();
 	}
 	public static void setSurveyTimes(String surveyId, String times){
 		putCommit(surveyId + "-times", times);
+		SurveyRegistry.invalidate();
 	}
 	public static void setSurveyType(String surveyId, String type){
 		putCommit(surveyId + "-type", type);
+		SurveyRegistry.invalidate();
 	}
 	public static void setSurveySettings(String surveyId, String settings){
 		putCommit(surveyId + "-settings", settings);
+		SurveyRegistry.invalidate();
 	}
 	
 	//survey state storage
@@ -465,8 +517,9 @@ public class PersistentData {
 		editor.remove(surveyId + "-notificationState");
 		editor.remove(surveyId + "-settings");
 		editor.remove(surveyId + "-questionIds");
-		editor.commit();
+		commitOrStage();
 		removeSurveyId(surveyId);
+		SurveyRegistry.invalidate();
 	}
 	
 	//array style storage and removal for surveyIds and questionIds	
@@ -483,6 +536,7 @@ public class PersistentData {
 		if ( !list.contains(surveyId) ) {
 			list.add(surveyId);
 			putCommit(SURVEY_IDS, new JSONArray(list).toString() );
+			SurveyRegistry.invalidate();
 		}
 		else { throw new NullPointerException("duplicate survey id added: " + surveyId); } //we ensure uniqueness in the downloader, this should be unreachable.
 	}
@@ -492,6 +546,7 @@ public class PersistentData {
 		if ( list.contains(surveyId) ) {
 			list.remove(surveyId);
 			putCommit(SURVEY_IDS, new JSONArray(list).toString() );
+			SurveyRegistry.invalidate();
 		}
 		else { throw new NullPointerException("survey id does not exist: " + surveyId); } //we ensure uniqueness in the downloader, this should be unreachable.
 	}
@@ -508,13 +563,13 @@ public class PersistentData {
 		// Log.d("persistent data", "adding questionId: " + questionId);
 		if ( !list.contains(questionId) ) {
 			list.add(questionId);
-			putCommit(surveyId + "-questionIds", new JSONArray(list).toString() );
+			putApply(surveyId + "-questionIds", new JSONArray(list).toString() );
 		}
 		else { throw new NullPointerException("duplicate question id added: " + questionId); } //we ensure uniqueness in the downloader, this should be unreachable.
 	}
 	
 	public static void clearSurveyQuestionMemory(String surveyId) {
-		putCommit(surveyId + "-questionIds", new JSONArray().toString() );
+		putApply(surveyId + "-questionIds", new JSONArray().toString() );
 	}
 
 	/*###########################################################################################
@@ -531,6 +586,7 @@ public class PersistentData {
 		if(saltString == null) { // create salt if it does not exist
 			byte[] newSalt = SecureRandom.getSeed(64);
 			putCommit(HASH_SALT_KEY, new String(newSalt));
+			IdentifierHashCache.invalidate();
 			return newSalt;
 		}
 		else {
@@ -545,6 +601,7 @@ public class PersistentData {
 			// create random iteration count from 900 to 1100
 			int newIterations = 1100 - new Random().nextInt(200);
 			putCommit(HASH_ITERATIONS_KEY, newIterations);
+			IdentifierHashCache.invalidate();
 			return newIterations;
 		}
 		else {
@@ -626,4 +683,180 @@ public class PersistentData {
 	public static void setCallResearchAssistantButtonEnabled(boolean enabled) {
 		putCommit(CALL_RESEARCH_ASSISTANT_BUTTON_ENABLED_KEY, enabled);
 	}
+
+	/*###########################################################################################
+	#################################### Data File Format #######################################
+	###########################################################################################*/
+
+	private static final String USE_BLOCK_FILE_FORMAT_KEY = "use_block_file_format";
+
+	/** Whether new data files are written in the v2 block format, see BlockFileFormat. */
+	public static boolean getUseBlockFileFormat() {
+		return pref.getBoolean(USE_BLOCK_FILE_FORMAT_KEY, false);
+	}
+
+	public static void setUseBlockFileFormat(boolean enabled) {
+		putCommit(USE_BLOCK_FILE_FORMAT_KEY, enabled);
+	}
+
+	private static final String COMPRESS_DATA_FILES_KEY = "compress_data_files";
+
+	/** Whether block format files deflate each block before encrypting it. */
+	public static boolean getCompressDataFiles() {
+		return pref.getBoolean(COMPRESS_DATA_FILES_KEY, false);
+	}
+
+	public static void setCompressDataFiles(boolean enabled) {
+		putCommit(COMPRESS_DATA_FILES_KEY, enabled);
+	}
+
+	private static final String USE_KEY_SESSIONS_KEY = "use_key_sessions";
+
+	/** Whether block format files derive their keys from a shared KeySession, see KeySession. */
+	public static boolean getUseKeySessions() {
+		return pref.getBoolean(USE_KEY_SESSIONS_KEY, false);
+	}
+
+	public static void setUseKeySessions(boolean enabled) {
+		putCommit(USE_KEY_SESSIONS_KEY, enabled);
+	}
+
+	private static final String USE_IMU_BINARY_FORMAT_KEY = "use_imu_binary_format";
+
+	/** Whether block format accelerometer and gyroscope files hold binary sample blocks, see ImuBlockFormat. */
+	public static boolean getUseImuBinaryFormat() {
+		return pref.getBoolean(USE_IMU_BINARY_FORMAT_KEY, false);
+	}
+
+	public static void setUseImuBinaryFormat(boolean enabled) {
+		putCommit(USE_IMU_BINARY_FORMAT_KEY, enabled);
+	}
+
+	private static final String IMU_FLOAT_ENCODING_KEY_PREFIX = "imu_float_encoding_";
+
+	/** The encoding of the float columns in a stream's IMU binary files, see ImuBlockFormat.
+	 * @param streamName the name of the stream's TextFileManager, "accel" or "gyro". */
+	public static String getImuFloatEncoding(String streamName) {
+		return pref.getString(IMU_FLOAT_ENCODING_KEY_PREFIX + streamName, ImuBlockFormat.FLOAT32_ENCODING);
+	}
+
+	/** Unknown encodings are stored as float32, the encoding every decoder can read. */
+	public static void setImuFloatEncoding(String streamName, String floatEncoding) {
+		if (!ImuBlockFormat.isFloatEncoding(floatEncoding)) {
+			floatEncoding = ImuBlockFormat.FLOAT32_ENCODING;
+		}
+		putCommit(IMU_FLOAT_ENCODING_KEY_PREFIX + streamName, floatEncoding);
+	}
+
+	private static final String FLUSH_BUFFER_SIZE_BYTES_KEY = "flush_buffer_size_bytes";
+	private static final int DEFAULT_FLUSH_BUFFER_SIZE_BYTES = 8192;
+	private static final int MIN_FLUSH_BUFFER_SIZE_BYTES = 512;
+	private static final int MAX_FLUSH_BUFFER_SIZE_BYTES = 1024 * 1024;
+
+	/** The size of each data file's append buffer, data reaches the disk when it fills (or see getFlushIntervalMilliseconds). */
+	public static int getFlushBufferSizeBytes() {
+		int size = pref.getInt(FLUSH_BUFFER_SIZE_BYTES_KEY, DEFAULT_FLUSH_BUFFER_SIZE_BYTES);
+		return Math.max(MIN_FLUSH_BUFFER_SIZE_BYTES, Math.min(size, MAX_FLUSH_BUFFER_SIZE_BYTES));
+	}
+
+	public static void setFlushBufferSizeBytes(int size) {
+		putCommit(FLUSH_BUFFER_SIZE_BYTES_KEY, size);
+	}
+
+	private static final String FLUSH_INTERVAL_SECONDS_KEY = "flush_interval_seconds";
+	private static final int DEFAULT_FLUSH_INTERVAL_SECONDS = 10;
+	private static final int MAX_FLUSH_INTERVAL_SECONDS = 60 * 60;
+
+	/** How long buffered data file writes may wait before they are pushed to disk, at least a second. */
+	public static long getFlushIntervalMilliseconds() {
+		int seconds = pref.getInt(FLUSH_INTERVAL_SECONDS_KEY, DEFAULT_FLUSH_INTERVAL_SECONDS);
+		return 1000L * Math.max(1, Math.min(seconds, MAX_FLUSH_INTERVAL_SECONDS));
+	}
+
+	public static void setFlushIntervalSeconds(int seconds) {
+		putCommit(FLUSH_INTERVAL_SECONDS_KEY, seconds);
+	}
+
+	/*###########################################################################################
+	######################################### Uploads ###########################################
+	###########################################################################################*/
+
+	private static final String PARALLEL_UPLOAD_COUNT_KEY = "parallel_upload_count";
+	private static final int DEFAULT_PARALLEL_UPLOAD_COUNT = 3;
+	private static final int MAX_PARALLEL_UPLOAD_COUNT = 8;
+
+	/** The number of files PostRequest uploads at once, between 1 and MAX_PARALLEL_UPLOAD_COUNT. */
+	public static int getParallelUploadCount() {
+		int count = pref.getInt(PARALLEL_UPLOAD_COUNT_KEY, DEFAULT_PARALLEL_UPLOAD_COUNT);
+		return Math.max(1, Math.min(count, MAX_PARALLEL_UPLOAD_COUNT));
+	}
+
+	public static void setParallelUploadCount(int count) {
+		putCommit(PARALLEL_UPLOAD_COUNT_KEY, count);
+	}
+
+	private static final String UPLOAD_PRIORITIES_KEY = "upload_priorities";
+
+	/** A JSON object of per data stream upload priorities, or null for the defaults. See UploadScheduler. */
+	public static String getUploadPriorities() {
+		return pref.getString(UPLOAD_PRIORITIES_KEY, null);
+	}
+
+	public static void setUploadPriorities(String priorities) {
+		putCommit(UPLOAD_PRIORITIES_KEY, priorities);
+	}
+
+	private static final String USE_BATCHED_UPLOADS_KEY = "use_batched_uploads";
+
+	/** Whether small files are uploaded several to a request, see UploadBatcher. */
+	public static boolean getUseBatchedUploads() {
+		return pref.getBoolean(USE_BATCHED_UPLOADS_KEY, false);
+	}
+
+	public static void setUseBatchedUploads(boolean enabled) {
+		putCommit(USE_BATCHED_UPLOADS_KEY, enabled);
+	}
+
+	private static final String USE_RESUMABLE_UPLOADS_KEY = "use_resumable_uploads";
+
+	/** Whether large files are uploaded in resumable chunks, see ResumableUploader. */
+	public static boolean getUseResumableUploads() {
+		return pref.getBoolean(USE_RESUMABLE_UPLOADS_KEY, false);
+	}
+
+	public static void setUseResumableUploads(boolean enabled) {
+		putCommit(USE_RESUMABLE_UPLOADS_KEY, enabled);
+	}
+
+	/*###########################################################################################
+	######################################### Alarms ############################################
+	###########################################################################################*/
+
+	private static final String ALARM_SLACK_SECONDS_KEY = "alarm_slack_seconds";
+	private static final long DEFAULT_ALARM_SLACK_SECONDS = 2;
+
+	/** How early a timer event may run so that it shares a wake-up with an earlier one, see Timer. */
+	public static long getAlarmSlackMilliseconds() {
+		return 1000L * Math.max(0, pref.getLong(ALARM_SLACK_SECONDS_KEY, DEFAULT_ALARM_SLACK_SECONDS));
+	}
+
+	public static void setAlarmSlackSeconds(long seconds) {
+		putCommit(ALARM_SLACK_SECONDS_KEY, seconds);
+	}
+
+	/*###########################################################################################
+	######################################### Sensors ###########################################
+	###########################################################################################*/
+
+	private static final String SENSOR_REPORT_LATENCY_SECONDS_KEY = "sensor_report_latency_seconds";
+
+	/** How long the accelerometer and gyroscope may hold samples in their hardware FIFO before delivering
+	 * them, 0 (the default) delivers every sample as it is taken. */
+	public static long getSensorReportLatencyMilliseconds() {
+		return 1000L * Math.max(0, pref.getLong(SENSOR_REPORT_LATENCY_SECONDS_KEY, 0));
+	}
+
+	public static void setSensorReportLatencySeconds(long seconds) {
+		putCommit(SENSOR_REPORT_LATENCY_SECONDS_KEY, seconds);
+	}
 }
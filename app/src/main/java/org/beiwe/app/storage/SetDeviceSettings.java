@@ -103,5 +103,80 @@ public class SetDeviceSettings {
 		try { callResearchAssistantButtonEnabled = deviceSettings.getBoolean("call_research_assistant_button_enabled"); }
 		catch (JSONException e) { callResearchAssistantButtonEnabled = true; }
 		PersistentData.setCallResearchAssistantButtonEnabled(callResearchAssistantButtonEnabled);
+
+		// Data file format
+		boolean useBlockFileFormat; // This key was added late, and if the server is old it may not be present
+		try { useBlockFileFormat = deviceSettings.getBoolean("use_block_file_format"); }
+		catch (JSONException e) { useBlockFileFormat = false; }
+		PersistentData.setUseBlockFileFormat(useBlockFileFormat);
+
+		boolean compressDataFiles; // This key was added late, and if the server is old it may not be present
+		try { compressDataFiles = deviceSettings.getBoolean("compress_data_files"); }
+		catch (JSONException e) { compressDataFiles = false; }
+		PersistentData.setCompressDataFiles(compressDataFiles);
+
+		boolean useKeySessions; // This key was added late, and if the server is old it may not be present
+		try { useKeySessions = deviceSettings.getBoolean("use_key_sessions"); }
+		catch (JSONException e) { useKeySessions = false; }
+		PersistentData.setUseKeySessions(useKeySessions);
+
+		boolean useImuBinaryFormat; // This key was added late, and if the server is old it may not be present
+		try { useImuBinaryFormat = deviceSettings.getBoolean("use_imu_binary_format"); }
+		catch (JSONException e) { useImuBinaryFormat = false; }
+		PersistentData.setUseImuBinaryFormat(useImuBinaryFormat);
+
+		String accelerometerFloatEncoding; // This key was added late, and if the server is old it may not be present
+		try { accelerometerFloatEncoding = deviceSettings.getString("accelerometer_float_encoding"); }
+		catch (JSONException e) { accelerometerFloatEncoding = ImuBlockFormat.FLOAT32_ENCODING; }
+		PersistentData.setImuFloatEncoding("accel", accelerometerFloatEncoding);
+
+		String gyroscopeFloatEncoding; // This key was added late, and if the server is old it may not be present
+		try { gyroscopeFloatEncoding = deviceSettings.getString("gyroscope_float_encoding"); }
+		catch (JSONException e) { gyroscopeFloatEncoding = ImuBlockFormat.FLOAT32_ENCODING; }
+		PersistentData.setImuFloatEncoding("gyro", gyroscopeFloatEncoding);
+
+		// Write buffering
+		int flushBufferSizeBytes; // This key was added late, and if the server is old it may not be present
+		try { flushBufferSizeBytes = deviceSettings.getInt("flush_buffer_size_bytes"); }
+		catch (JSONException e) { flushBufferSizeBytes = 8192; }
+		PersistentData.setFlushBufferSizeBytes(flushBufferSizeBytes);
+
+		int flushIntervalSeconds; // This key was added late, and if the server is old it may not be present
+		try { flushIntervalSeconds = deviceSettings.getInt("flush_interval_seconds"); }
+		catch (JSONException e) { flushIntervalSeconds = 10; }
+		PersistentData.setFlushIntervalSeconds(flushIntervalSeconds);
+
+		// Uploads
+		int parallelUploadCount; // This key was added late, and if the server is old it may not be present
+		try { parallelUploadCount = deviceSettings.getInt("parallel_upload_count"); }
+		catch (JSONException e) { parallelUploadCount = 3; }
+		PersistentData.setParallelUploadCount(parallelUploadCount);
+
+		boolean useResumableUploads; // This key was added late, and if the server is old it may not be present
+		try { useResumableUploads = deviceSettings.getBoolean("use_resumable_uploads"); }
+		catch (JSONException e) { useResumableUploads = false; }
+		PersistentData.setUseResumableUploads(useResumableUploads);
+
+		boolean useBatchedUploads; // This key was added late, and if the server is old it may not be present
+		try { useBatchedUploads = deviceSettings.getBoolean("use_batched_uploads"); }
+		catch (JSONException e) { useBatchedUploads = false; }
+		PersistentData.setUseBatchedUploads(useBatchedUploads);
+
+		String uploadPriorities; // This key was added late, and if the server is old it may not be present
+		try { uploadPriorities = deviceSettings.getJSONObject("upload_priorities").toString(); }
+		catch (JSONException e) { uploadPriorities = null; }
+		PersistentData.setUploadPriorities(uploadPriorities);
+
+		// Alarms
+		long alarmSlackSeconds; // This key was added late, and if the server is old it may not be present
+		try { alarmSlackSeconds = deviceSettings.getLong("alarm_slack_seconds"); }
+		catch (JSONException e) { alarmSlackSeconds = 2; }
+		PersistentData.setAlarmSlackSeconds(alarmSlackSeconds);
+
+		// Sensors
+		long sensorReportLatencySeconds; // This key was added late, and if the server is old it may not be present
+		try { sensorReportLatencySeconds = deviceSettings.getLong("sensor_report_latency_seconds"); }
+		catch (JSONException e) { sensorReportLatencySeconds = 0; }
+		PersistentData.setSensorReportLatencySeconds(sensorReportLatencySeconds);
 	}
 }
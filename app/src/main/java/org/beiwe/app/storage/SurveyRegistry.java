@@ -0,0 +1,136 @@
+package org.beiwe.app.storage;
+
+import android.util.Log;
+
+import org.beiwe.app.JSONUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**An immutable, already-parsed snapshot of every survey stored in PersistentData.
+ * Survey ids, content, timings and settings are stored as JSON strings in SharedPreferences, and the
+ * timer receiver, the scheduler and the notification code used to re-parse them on every broadcast.
+ * The snapshot is built once and swapped in whole; any change to survey data through PersistentData
+ * drops it, and the next get() builds a new one.  SurveyDownloader rebuilds it eagerly once an update
+ * has been committed.  Lookups on a snapshot never touch SharedPreferences or allocate. */
+public class SurveyRegistry {
+
+	private static volatile SurveyRegistry current = null;
+
+	private final List<String> surveyIds;
+	private final Map<String, Survey> surveys;
+
+	private SurveyRegistry(List<String> surveyIds, Map<String, Survey> surveys) {
+		this.surveyIds = Collections.unmodifiableList(surveyIds);
+		this.surveys = surveys;
+	}
+
+	/** @return the current snapshot, building it from PersistentData if survey data changed since the last one. */
+	public static SurveyRegistry get() {
+		SurveyRegistry registry = current;
+		if (registry == null) { registry = rebuild(); }
+		return registry;
+	}
+
+	/** Builds a snapshot from PersistentData and makes it the current one. */
+	public static synchronized SurveyRegistry rebuild() {
+		List<String> ids = JSONUtils.jsonArrayToStringList( PersistentData.getSurveyIdsJsonArray() );
+		Map<String, Survey> surveys = new HashMap<String, Survey>(ids.size() * 2);
+		for (String surveyId : ids) { surveys.put(surveyId, new Survey(surveyId)); }
+		SurveyRegistry registry = new SurveyRegistry(ids, surveys);
+		current = registry;
+		return registry;
+	}
+
+	/** Drops the current snapshot, PersistentData calls this whenever survey data is written.
+	 * Synchronized with rebuild so that a rebuild that raced with a write can never be left in place. */
+	static synchronized void invalidate() { current = null; }
+
+	/** @return the survey ids in the order they were added, the list is unmodifiable. */
+	public List<String> getSurveyIds() { return surveyIds; }
+
+	public boolean contains(String surveyId) { return surveys.containsKey(surveyId); }
+
+	/** @return the survey, or null if there is no survey with that id. */
+	public Survey getSurvey(String surveyId) { return surveys.get(surveyId); }
+
+
+	/**The stored data for one survey.  Settings and trigger times are parsed when the snapshot is built;
+	 * survey content is kept as a string because the survey activity shuffles its own copy of it. */
+	public static class Survey {
+		private final String surveyId;
+		private final String type;
+		private final String content;
+		private final String times;
+		private final String settingsString;
+		private final JSONObject settings;
+		private final int[][] timesByDay;
+
+		private Survey(String surveyId) {
+			this.surveyId = surveyId;
+			this.type = PersistentData.getSurveyType(surveyId);
+			this.content = PersistentData.getSurveyContent(surveyId);
+			this.times = PersistentData.getSurveyTimes(surveyId);
+			this.settingsString = PersistentData.getSurveySettings(surveyId);
+			this.settings = parseSettings(surveyId, settingsString);
+			this.timesByDay = parseTimes(times);
+		}
+
+		public String getSurveyId() { return surveyId; }
+		public String getType() { return type; }
+		public String getContent() { return content; }
+		public String getTimes() { return times; }
+		public String getSettingsString() { return settingsString; }
+
+		/* Settings accessors, these return the default if the settings were missing or malformed. */
+		public boolean hasSetting(String key) { return settings.has(key); }
+		public boolean getSettingBoolean(String key, boolean defaultValue) { return settings.optBoolean(key, defaultValue); }
+		public int getSettingInt(String key, int defaultValue) { return settings.optInt(key, defaultValue); }
+		public String getSettingString(String key, String defaultValue) { return settings.optString(key, defaultValue); }
+
+		/** @return true if the trigger times were present and well formed. */
+		public boolean hasValidTimes() { return timesByDay != null; }
+
+		/** @param day day of the week, 0 is Sunday.
+		 * @return the number of trigger times on that day. */
+		public int getTimeCount(int day) { return timesByDay[day].length; }
+
+		/** @param day day of the week, 0 is Sunday.
+		 * @return the index-th trigger time on that day, in seconds past midnight, times are sorted. */
+		public int getTime(int day, int index) { return timesByDay[day][index]; }
+
+		private static JSONObject parseSettings(String surveyId, String settingsString) {
+			if (settingsString == null) { return new JSONObject(); }
+			try { return new JSONObject(settingsString); }
+			catch (JSONException e) {
+				Log.e("SurveyRegistry", "There was an error parsing survey settings for " + surveyId);
+				return new JSONObject(); }
+		}
+
+		/**Times are stored as a JSON array of seven JSON arrays (Sunday first) of seconds past midnight.
+		 * @return the sorted times for each day, or null if the string was missing or malformed. */
+		private static int[][] parseTimes(String times) {
+			if (times == null) { return null; }
+			try {
+				List<String> jsonDays = JSONUtils.jsonArrayToStringList( new JSONArray(times) );
+				if (jsonDays.size() != 7) { return null; }
+				int[][] timesByDay = new int[jsonDays.size()][];
+				for (int day = 0; day < jsonDays.size(); day++) {
+					ArrayList<Integer> dayInts = JSONUtils.jsonArrayToIntegerList( new JSONArray(jsonDays.get(day)) );
+					Collections.sort(dayInts); //ensure sorted because... because.
+					timesByDay[day] = new int[dayInts.size()];
+					for (int i = 0; i < dayInts.size(); i++) { timesByDay[day][i] = dayInts.get(i); }
+				}
+				return timesByDay;
+			}
+			catch (JSONException e) { return null; }
+			catch (NullPointerException e) { return null; } //JSONUtils reports malformed arrays this way.
+		}
+	}
+}
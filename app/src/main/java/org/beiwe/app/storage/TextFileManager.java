@@ -11,6 +11,7 @@ import org.beiwe.app.listeners.CallLogger;
 import org.beiwe.app.listeners.GPSListener;
 import org.beiwe.app.listeners.GyroscopeListener;
 import org.beiwe.app.listeners.PowerStateListener;
+import org.beiwe.app.listeners.SensorSampleBuffer;
 import org.beiwe.app.listeners.SmsSentLogger;
 import org.beiwe.app.listeners.WifiListener;
 import org.beiwe.app.survey.AudioRecorderActivity;
@@ -19,14 +20,22 @@ import org.beiwe.app.survey.SurveyAnswersRecorder;
 import org.beiwe.app.survey.SurveyTimingsRecorder;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**The (Text)FileManager.
  * The FileManager is implemented as a Singleton.  More accurately the static object contains several
@@ -68,6 +77,11 @@ public class TextFileManager {
 	private static String getter_error = "Tried to access %s before calling TextFileManager.start().";
 	private static String broken_getter_error = "Tried to access %s before calling TextFileManager.start(), but the timeout failed.";
 	
+	// Maximum number of lines a file's write queue holds before the oldest lines are dropped.
+	private static final int WRITE_QUEUE_CAPACITY = 4096;
+	// Sample buffers are bounded to about the same number of rows.
+	private static final int SAMPLE_QUEUE_CAPACITY = WRITE_QUEUE_CAPACITY / SensorSampleBuffer.CAPACITY;
+	
 	private static void throwGetterError (String sourceName) {
 		throw new NullPointerException(String.format(getter_error, sourceName));
 	}
@@ -224,11 +238,35 @@ public class TextFileManager {
 	//and (finally) the non-static object instance variables
 	public String name = null;
 	public String fileName = null;
+	private long fileCreatedTime = 0;
 	private String header = null;
 	private Boolean persistent = null;
 	private Boolean encrypted = null;
 	private Boolean isDummy = true;
-	private byte[] AESKey = null;
+	private AESEncryptor encryptor = null;
+	private BufferedOutputStream outStream = null;
+	// Write buffering. Each open file keeps a buffered append stream, data is pushed to disk when the buffer
+	// fills, and the WriteBehindWriter flushes any file whose last flush is more than flushInterval old.
+	// Both come from the device settings, see PersistentData.getFlushBufferSizeBytes, and are read when the
+	// stream opens, so a change applies from each file's next stream.
+	private long lastFlushTime = 0;
+	private long flushInterval = 0; //value is in milliseconds
+	private final WriteBehindQueue writeQueue = new WriteBehindQueue(WRITE_QUEUE_CAPACITY);
+	private final ConcurrentLinkedQueue<SensorSampleBuffer> sampleQueue = new ConcurrentLinkedQueue<SensorSampleBuffer>();
+	private final AtomicInteger sampleQueueSize = new AtomicInteger(0);
+	private final AtomicLong droppedSampleCount = new AtomicLong(0);
+	private final CsvRowEncoder sampleRow = new CsvRowEncoder();
+	// v2 block format state, rows are collected here and encrypted together, see BlockFileFormat.
+	private boolean blockFormat = false;
+	private boolean compressBlocks = false;
+	private final ByteArrayOutputStream pendingBlock = new ByteArrayOutputStream();
+	private int pendingBlockRows = 0;
+	private long pendingBlockStartTime = 0;
+	// IMU binary state, for accelerometer and gyroscope files whose samples are written as binary blocks, see ImuBlockFormat.
+	private String imuFloatText = null;
+	private boolean imuBinary = false;
+	private String imuFloatEncoding = ImuBlockFormat.FLOAT32_ENCODING;
+	private ImuBlockFormat.BlockEncoder imuBlock = null;
 	
 	/*###############################################################################
 	########################### Class Initialization ################################
@@ -239,6 +277,17 @@ public class TextFileManager {
 	 * Initializes all TextFileManager object instances.  Initialization is idempotent.
 	 * @param appContext a Context, provided by the app. */
 	public static synchronized void initialize (Context appContext) {
+		//the first initialization loads the upload manifest, this is the one time the files directory is scanned.
+		UploadManifest.initialize(appContext, Arrays.asList("keyFile",
+				AudioRecorderActivity.unencryptedTempAudioFileName,
+				AudioRecorderEnhancedActivity.unencryptedRawAudioFileName,
+				AudioRecorderEnhancedActivity.unencryptedTempAudioFileName,
+				AmbientAudioListener.unencryptedTempAudioFilename));
+		//initialization may be run more than once, the old instances need to write out and release their files.
+		for (TextFileManager file : allFiles()) {
+			file.drainWriteQueue();
+			file.closeFile();
+		}
 		//the key file for encryption (it is persistent and never written to)
 		keyFile = new TextFileManager(
 			appContext, "keyFile", "", true, true, false, false
@@ -264,6 +313,8 @@ public class TextFileManager {
 		gyroFile = new TextFileManager(
 			appContext, "gyro", GyroscopeListener.header, false, false, true, !PersistentData.getGyroscopeEnabled()
 		);
+		accelFile.imuFloatText = ImuBlockFormat.SHORTEST_FLOAT_TEXT;
+		gyroFile.imuFloatText = ImuBlockFormat.FIXED16_FLOAT_TEXT;
 		textsLog = new TextFileManager(
 			appContext, "textsLog", SmsSentLogger.header, false, false, true, !PersistentData.getTextsEnabled()
 		);
@@ -286,6 +337,7 @@ public class TextFileManager {
 		wifiLog = new TextFileManager(
 			appContext, "wifiLog", WifiListener.header, false, false, true, !PersistentData.getWifiEnabled()
 		);
+		WriteBehindWriter.startWriter();
 	}
 	
 	/*###############################################################################
@@ -320,12 +372,20 @@ public class TextFileManager {
 	 * Persistent files do not get a time stamp.
 	 * Encrypted files get a key and have the key encrypted using RSA and written as the first line of the file.
 	 * If a file has a header it is written as the second line.
+	 * When the block file format is enabled encrypted files get the plaintext format line as their second line
+	 * and the header becomes the first row of the first block.  With key sessions enabled as well the first line
+	 * is the current KeySession's key and the file's key is derived from it.  Accelerometer and gyroscope files
+	 * in the block format may also be IMU binary files, the header is then a block of its own, see ImuBlockFormat.
 	 * Fails when files are not allowed to be written to. (the rule is no encrypted writes until registraction is complete.
 	 * @return A boolean value of whether a new file has been created.*/
 	public synchronized boolean newFile () {
 		if (this.isDummy) {
 			return false;
 		}
+		//the previous file's last block has to be written out with the previous file's key
+		this.sealBlock();
+		String retiredFileName = this.fileName;
+		long retiredFileCreatedTime = this.fileCreatedTime;
 		//handle the naming cases for persistent vs. non-persistent files
 		if (this.persistent) {
 			this.fileName = this.name;
@@ -336,17 +396,57 @@ public class TextFileManager {
 			}
 			this.fileName = PersistentData.getPatientID() + "_" + this.name + "_" + System.currentTimeMillis() + ".csv";
 		}
+		this.fileCreatedTime = System.currentTimeMillis();
 		
 		try {
+			//retire the stream of the previous file and open the append stream for the new file
+			this.closeOutStream();
+			this.retireFile(retiredFileName, retiredFileCreatedTime);
+			this.openOutStream();
+			this.blockFormat = this.encrypted && PersistentData.getUseBlockFileFormat();
+			this.compressBlocks = this.blockFormat && PersistentData.getCompressDataFiles();
+			this.imuBinary = false;
+			boolean imuBinary = this.blockFormat && this.imuFloatText != null && PersistentData.getUseImuBinaryFormat();
+			String versionLine = BlockFileFormat.VERSION_LINE;
 			//write the key to the file (if it has one)
-			if (this.encrypted) {
-				this.AESKey = EncryptionEngine.newAESKey();
-				this.unsafeWritePlaintext(EncryptionEngine.encryptRSA(this.AESKey));
+			if (this.blockFormat && PersistentData.getUseKeySessions()) {
+				// the file's key is derived from the session key, no RSA operation required.
+				KeySession session = KeySession.getCurrent();
+				KeySession.FileKey fileKey = session.newFileKey();
+				this.encryptor = fileKey.encryptor;
+				this.unsafeWritePlaintext(session.getEncryptedSessionKey());
+				versionLine = fileKey.versionLine;
+			} else if (this.encrypted) {
+				this.encryptor = new AESEncryptor(EncryptionEngine.newAESKey());
+				this.unsafeWritePlaintext(EncryptionEngine.encryptRSA(this.encryptor.getKey()));
+			}
+			if (this.blockFormat) {
+				if (this.compressBlocks) {
+					versionLine += " " + BlockFileFormat.COMPRESSION_OPTION + "=" + BlockFileFormat.DEFLATE_COMPRESSION;
+				}
+				if (imuBinary) {
+					this.imuFloatEncoding = PersistentData.getImuFloatEncoding(this.name);
+					versionLine += " " + ImuBlockFormat.formatOptions(this.imuFloatEncoding, this.imuFloatText);
+				}
+				this.unsafeWritePlaintext(versionLine);
+				if (imuBinary) {
+					// the header is always the first block, the binary blocks follow it.
+					byte[] headerBytes = (header == null ? "" : header).getBytes();
+					this.appendToBlock(headerBytes, headerBytes.length);
+					this.sealBlock();
+					if (this.imuBlock == null) {
+						this.imuBlock = new ImuBlockFormat.BlockEncoder();
+					}
+					this.imuBinary = true;
+				} else if (header != null && header.length() > 0) {
+					byte[] headerBytes = header.getBytes();
+					this.appendToBlock(headerBytes, headerBytes.length);
+				}
 			}
 			//write the csv header, if the file has a header
-			if (header != null && header.length() > 0) {
+			else if (header != null && header.length() > 0) {
 				// We will not call writeEncrypted here because we need to handle the specific case of the new file not being created properly.
-				this.unsafeWritePlaintext(EncryptionEngine.encryptAES(header, this.AESKey));
+				this.unsafeWritePlaintext(this.encryptor.encrypt(header));
 			}
 		} catch (FileNotFoundException e) {
 			if (e.getMessage().toLowerCase().contains("enospc")) { // If the device is out of storage
@@ -356,6 +456,7 @@ public class TextFileManager {
 				e.printStackTrace();
 				CrashHandler.writeCrashlog(e, appContext);
 			}
+			this.closeOutStream();
 			this.fileName = null;  // Set filename null so that the system tries to create the file again later
 			return false;
 		} catch (IOException e) {
@@ -366,16 +467,19 @@ public class TextFileManager {
 				e.printStackTrace();
 				CrashHandler.writeCrashlog(e, appContext);
 			}
+			this.closeOutStream();
 			this.fileName = null;
 			return false;
 		} catch (InvalidKeyException e) {
 			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
 			CrashHandler.writeCrashlog(e, appContext);
+			this.closeOutStream();
 			this.fileName = null;
 			return false;
 		} catch (InvalidKeySpecException e) { //this occurs when an encrypted write operation occurs without an RSA key file, we eat this error because it only happens during registration/initial config.
 			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name + ", " + header);
 			e.printStackTrace();
+			this.closeOutStream();
 			this.fileName = null;
 			return false;
 		}
@@ -398,18 +502,76 @@ public class TextFileManager {
 	########################## Read and Write Operations ############################
 	###############################################################################*/
 	
+	/** Opens the long-lived append stream for the current file.  We always want mode append. */
+	private void openOutStream () throws FileNotFoundException {
+		this.outStream = new BufferedOutputStream(appContext.openFileOutput(this.fileName, Context.MODE_APPEND),
+				PersistentData.getFlushBufferSizeBytes());
+		this.flushInterval = PersistentData.getFlushIntervalMilliseconds();
+		this.lastFlushTime = System.currentTimeMillis();
+	}
+	
+	/** Flushes and closes the append stream, if there is one.  Errors are logged, not thrown;
+	 * there is nothing useful the caller can do with a file that won't close. */
+	private void closeOutStream () {
+		if (this.outStream == null) {
+			return;
+		}
+		try {
+			this.outStream.close();
+		} catch (IOException e) {
+			Log.e("TextFileManager", "could not close " + this.fileName + ": " + e.getMessage());
+			e.printStackTrace();
+		}
+		this.outStream = null;
+	}
+	
 	/** Takes a string. writes that to the file, adds a new line to the string.
 	 * Prints a stacktrace on a write error, but does not crash. If there is no
 	 * file, a new file will be created.
+	 * The data goes into the file's buffered append stream, it is pushed to disk according to the flush policy.
 	 * @param data any unicode valid string*/
 	private synchronized void unsafeWritePlaintext (String data) throws FileNotFoundException, IOException {
-		FileOutputStream outStream;
-		//write the output, we always want mode append
-		outStream = appContext.openFileOutput(this.fileName, Context.MODE_APPEND);
-		outStream.write((data).getBytes());
-		outStream.write("\n".getBytes());
-		outStream.flush();
-		outStream.close();
+		if (this.outStream == null) {
+			this.openOutStream();
+		}
+		this.outStream.write((data).getBytes());
+		this.outStream.write('\n');
+		long now = System.currentTimeMillis();
+		if (now - this.lastFlushTime > this.flushInterval) {
+			this.outStream.flush();
+			this.lastFlushTime = now;
+		}
+	}
+	
+	/** Pushes any buffered data for this file, including a partially filled block, to disk. */
+	public synchronized void flush () {
+		this.sealBlock();
+		this.flushStream();
+	}
+	
+	/**Pushes the append stream's buffer to disk if the last flush is more than flushInterval old, so that quiet
+	 * streams do not hold data in memory until their next write.  A partially filled block is left to age
+	 * out on its own, see sealBlockIfExpired.  Runs on the WriteBehindWriter thread. */
+	synchronized void flushIfDue () {
+		if (this.outStream != null && System.currentTimeMillis() - this.lastFlushTime > this.flushInterval) {
+			this.flushStream();
+		}
+	}
+	
+	private synchronized void flushStream () {
+		if (this.outStream == null) {
+			return;
+		}
+		try {
+			this.outStream.flush();
+			this.lastFlushTime = System.currentTimeMillis();
+		} catch (IOException e) {
+			if (e.getMessage() != null && e.getMessage().toLowerCase().contains("enospc")) { // If the device is out of storage
+				Log.e("ENOSPC", "Out of storage space");
+			}
+			Log.e("TextFileManager", "error flushing " + this.fileName + ": " + e.getMessage());
+			e.printStackTrace();
+		}
 	}
 	
 	public synchronized void safeWritePlaintext (String data) {
@@ -439,30 +601,203 @@ public class TextFileManager {
 	/**Encrypts string data and writes it to a file.
 	 * @param data any unicode valid string */
 	public synchronized void writeEncrypted (String data) {
-		if (this.isDummy) {
+		if (!this.readyForEncryptedWrite()) {
+			return;
+		}
+		byte[] bytes = data.getBytes();
+		this.writeEncryptedBytes(bytes, bytes.length);
+	}
+	
+	/**Encrypts a row built with a CsvRowEncoder and writes it to the file.  The bytes go to the encryptor
+	 * (or the pending block) as they are, no String is made.  The encoder may be reset as soon as this returns.
+	 * @param row the row, without a trailing newline */
+	public synchronized void writeRow (CsvRowEncoder row) {
+		if (!this.readyForEncryptedWrite()) {
 			return;
 		}
+		this.writeEncryptedBytes(row.array(), row.length());
+	}
+	
+	/** @return whether encrypted data may be written now, a file is made if there is none. */
+	private synchronized boolean readyForEncryptedWrite () {
+		if (this.isDummy) {
+			return false;
+		}
 		if (!this.encrypted) {
 			throw new NullPointerException(this.name + "is not supposed to have encrypted writes!");
 		}
 		if (fileName == null) {  // when newFile fails we are not allowed to write to files.
-			if (!this.newFile()) {
-				return;
-			}
+			return this.newFile();
+		}
+		return true;
+	}
+	
+	/** Encrypts the first length bytes of data as one line, or adds them to the pending block. */
+	private synchronized void writeEncryptedBytes (byte[] data, int length) {
+		if (this.imuBinary) { // only samples can go in a binary block, see appendSamplesToBlock.
+			Log.w("TextFileManager", "dropped a text row written to IMU binary file " + this.name);
+			return;
+		}
+		if (this.blockFormat) {
+			this.appendToBlock(data, length);
+			return;
 		}
 
 		try {
-			this.safeWritePlaintext(EncryptionEngine.encryptAES(data, this.AESKey));
+			this.safeWritePlaintext(this.encryptor.encrypt(data, 0, length));
 		} catch (InvalidKeyException e) {
 			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
 			CrashHandler.writeCrashlog(e, appContext);
 //			throw new NullPointerException("encrypted write operation without an AES key: " + this.fileName );
 		} catch (InvalidKeySpecException e) { //this occurs when an encrypted write operation occurs without an RSA key file, we eat this error because it only happens during registration/initial config.
-			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name + ", " + data);
+			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name + ", " + new String(data, 0, length));
 			e.printStackTrace();
 		}
 	}
 	
+	/** Adds a row to the pending block, the block is written out once it is full or old enough. */
+	private synchronized void appendToBlock (byte[] data, int length) {
+		if (this.pendingBlockRows == 0) {
+			this.pendingBlockStartTime = System.currentTimeMillis();
+		}
+		this.pendingBlock.write(data, 0, length);
+		this.pendingBlock.write('\n');
+		this.pendingBlockRows++;
+		if (this.pendingBlock.size() >= BlockFileFormat.MAX_BLOCK_BYTES || this.pendingBlockRows >= BlockFileFormat.MAX_BLOCK_ROWS) {
+			this.sealBlock();
+		} else {
+			this.sealBlockIfExpired();
+		}
+	}
+	
+	/** Adds samples to the pending binary block of an IMU binary file, the block is written out once it is full or old enough. */
+	private synchronized void appendSamplesToBlock (SensorSampleBuffer samples) {
+		for (int i = 0; i < samples.size(); i++) {
+			if (this.pendingBlockRows == 0) {
+				this.pendingBlockStartTime = System.currentTimeMillis();
+			}
+			this.imuBlock.add(samples.getTimestamp(i), samples.getAccuracy(i), samples.getX(i), samples.getY(i), samples.getZ(i));
+			this.pendingBlockRows++;
+			if (this.pendingBlockRows >= BlockFileFormat.MAX_BLOCK_ROWS) {
+				this.sealBlock();
+			}
+		}
+	}
+	
+	/** Writes out the pending block if its first row is older than BlockFileFormat.MAX_BLOCK_AGE,
+	 * this keeps quiet data streams from holding rows in memory until the file rotates. */
+	private synchronized void sealBlockIfExpired () {
+		if (this.pendingBlockRows > 0 && System.currentTimeMillis() - this.pendingBlockStartTime >= BlockFileFormat.MAX_BLOCK_AGE) {
+			this.sealBlock();
+		}
+	}
+	
+	/** Encrypts (and if enabled, first compresses) the pending block as a single line and writes it to the file. */
+	private synchronized void sealBlock () {
+		if (this.pendingBlockRows == 0) {
+			return;
+		}
+		byte[] plaintext = this.imuBinary ? this.imuBlock.encode(this.imuFloatEncoding) : this.pendingBlock.toByteArray();
+		this.discardBlock();
+		if (this.fileName == null) { // the block belongs to a file that no longer exists.
+			return;
+		}
+		try {
+			if (this.compressBlocks) {
+				plaintext = BlockFileFormat.deflate(plaintext);
+			}
+			this.safeWritePlaintext(this.encryptor.encrypt(plaintext));
+		} catch (InvalidKeyException e) {
+			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
+			CrashHandler.writeCrashlog(e, appContext);
+		} catch (InvalidKeySpecException e) { //see writeEncrypted, only happens during registration/initial config.
+			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name + ", block of " + plaintext.length + " bytes");
+			e.printStackTrace();
+		}
+	}
+	
+	private void discardBlock () {
+		this.pendingBlock.reset();
+		if (this.imuBlock != null) {
+			this.imuBlock.reset();
+		}
+		this.pendingBlockRows = 0;
+	}
+	
+	/**Queues string data to be encrypted and written to the file by the WriteBehindWriter thread.
+	 * Returns immediately, this is the write call to use from sensor callbacks and other time-sensitive code.
+	 * @param data any unicode valid string */
+	public void enqueueEncrypted (String data) {
+		if (this.isDummy) {
+			return;
+		}
+		this.writeQueue.offer(data);
+		WriteBehindWriter.wake();
+	}
+	
+	/**Queues a row built with a CsvRowEncoder, see enqueueEncrypted.  The row's bytes are copied into the
+	 * write queue, no String is made; the encoder may be reset as soon as this returns. */
+	public void enqueueRow (CsvRowEncoder row) {
+		if (this.isDummy) {
+			return;
+		}
+		this.writeQueue.offer(row);
+		WriteBehindWriter.wake();
+	}
+	
+	/**Queues a full (or partly full) buffer of sensor samples to be formatted, encrypted and written by the
+	 * WriteBehindWriter thread.  The file takes ownership of the buffer and recycles it once it is written.
+	 * If too many buffers are waiting the oldest is dropped, like the lines in the write queue. */
+	public void enqueueSamples (SensorSampleBuffer samples) {
+		if (this.isDummy) {
+			samples.recycle();
+			return;
+		}
+		this.sampleQueue.offer(samples);
+		if (this.sampleQueueSize.incrementAndGet() > SAMPLE_QUEUE_CAPACITY) {
+			SensorSampleBuffer dropped = this.sampleQueue.poll();
+			if (dropped != null) {
+				this.sampleQueueSize.decrementAndGet();
+				this.droppedSampleCount.addAndGet(dropped.size());
+				dropped.recycle();
+			}
+		}
+		WriteBehindWriter.wake();
+	}
+	
+	/** Encrypts and writes all lines waiting in the write queue, and reports any lines that had to be dropped. */
+	void drainWriteQueue () {
+		this.writeQueuedLines();
+		long droppedCount = this.writeQueue.takeDroppedCount() + this.droppedSampleCount.getAndSet(0);
+		if (droppedCount > 0) {
+			Log.w("TextFileManager", this.name + " write queue overflowed, dropped " + droppedCount + " lines");
+			writeDebugLogStatement(droppedCount + " lines dropped from the " + this.name + " write queue");
+		}
+	}
+	
+	private synchronized void writeQueuedLines () {
+		CsvRowEncoder line;
+		while ((line = this.writeQueue.poll()) != null) {
+			this.writeRow(line);
+			this.writeQueue.recycle(line);
+		}
+		SensorSampleBuffer samples;
+		while ((samples = this.sampleQueue.poll()) != null) {
+			this.sampleQueueSize.decrementAndGet();
+			if (this.readyForEncryptedWrite() && this.imuBinary) {
+				this.appendSamplesToBlock(samples);
+			} else {
+				for (int i = 0; i < samples.size(); i++) {
+					this.sampleRow.reset();
+					samples.appendRow(this.sampleRow, i);
+					this.writeRow(this.sampleRow);
+				}
+			}
+			samples.recycle();
+		}
+		this.sealBlockIfExpired();
+	}
+	
 	/**@return A string of the file contents. */
 	public synchronized String read () {
 		if (this.isDummy) {
@@ -472,6 +807,7 @@ public class TextFileManager {
 		BufferedInputStream bufferedInputStream;
 		StringBuffer stringBuffer = new StringBuffer();
 		int data;
+		this.flush(); //anything still sitting in the write buffer needs to be on disk before we read.
 		
 		try {
 			// Read through the (buffered) input stream, append to a stringbuffer.  Catch exceptions
@@ -505,15 +841,27 @@ public class TextFileManager {
 	
 	/** Delete the reference to the file so that it can be uploaded */
 	public synchronized void closeFile () {
+		this.sealBlock();
+		this.closeOutStream();
+		this.retireFile(this.fileName, this.fileCreatedTime);
 		this.fileName = null;
 	}
 	
+	/** Hands a file that will not be written to again over to the UploadManifest. */
+	private void retireFile (String retiredFileName, long createdTime) {
+		if (retiredFileName != null && !this.persistent) {
+			UploadManifest.fileClosed(retiredFileName, createdTime);
+		}
+	}
+	
 	/** Deletes a file in the safest possible way, based on the file type (persistent-nonpersistent). */
 	public synchronized void deleteSafely () {
 		if (this.isDummy) {
 			return;
 		}
 		String oldFileName = this.fileName;
+		this.discardBlock();
+		this.closeOutStream();
 		
 		// For files that are persistant we have to do a slightly unsafe deletion, for everything else
 		// we allocate the new file and then delete the old file.
@@ -531,6 +879,7 @@ public class TextFileManager {
 	/** Deletes a file.  Exists to make file deletion thread-safe.
 	 * @param fileName */
 	public static synchronized void delete (String fileName) {
+		UploadManifest.fileDeleted(fileName);
 		try {
 			appContext.deleteFile(fileName);
 		} catch (Exception e) {
@@ -540,9 +889,50 @@ public class TextFileManager {
 		}
 	}
 	
+	/** Deletes several files, e.g. the files accepted in a batched upload, under a single acquisition of the lock.
+	 * @param fileNames */
+	public static synchronized void delete (Collection<String> fileNames) {
+		for (String fileName : fileNames) {
+			delete(fileName);
+		}
+	}
+	
+	/** @return all TextFileManager instances that have been allocated. */
+	private static List<TextFileManager> allFiles () {
+		List<TextFileManager> files = new ArrayList<TextFileManager>();
+		for (TextFileManager file : new TextFileManager[] { GPSFile, accelFile, gyroFile, powerStateLog, callLog,
+				textsLog, bluetoothLog, debugLogFile, surveyTimings, surveyAnswers, wifiLog, keyFile }) {
+			if (file != null) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+	
+	/** Writes out every file's write queue and flushes files that are due, runs on the WriteBehindWriter thread. */
+	static void drainAllWriteQueues () {
+		BluetoothListener.writePendingScans();
+		for (TextFileManager file : allFiles()) {
+			file.drainWriteQueue();
+			file.flushIfDue();
+		}
+	}
+	
+	/** Writes out all queued and buffered data for every file to disk, used when the app may be about to die.
+	 * This includes the samples still in the accelerometer and gyroscope listeners' buffers. */
+	public static synchronized void flushAll () {
+		SensorSampleBuffer.handOffAll();
+		BluetoothListener.writePendingScans();
+		for (TextFileManager file : allFiles()) {
+			file.drainWriteQueue();
+			file.flush();
+		}
+	}
+	
 	/** Make new files for all the non-persistent files. */
 	public static synchronized void makeNewFilesForEverything () {
 //		Log.d("TextFileManager.java", "makeNewFilesForEverything() called");
+		KeySession.rotate(); //each rotation epoch gets its own key session.
 		GPSFile.newFile();
 		accelFile.newFile();
 		gyroFile.newFile();
@@ -560,36 +950,12 @@ public class TextFileManager {
 		return appContext.getFilesDir().list();
 	}
 	
-	/** Returns all data that are not currently in use
+	/** Returns all data that are not currently in use.
+	 * Files only enter the UploadManifest once they are closed, and the key and temporary audio files
+	 * never do, so no filtering is needed here.
 	 * @return String[] a list of file names */
-	public static synchronized String[] getAllUploadableFiles () {
-		Set<String> files = new HashSet<String>();
-		Collections.addAll(files, getAllFiles());
-		
-		// These files should never be uploaded
-		files.remove(TextFileManager.getKeyFile().fileName);
-		files.remove(AudioRecorderActivity.unencryptedTempAudioFileName);
-		files.remove(AudioRecorderEnhancedActivity.unencryptedRawAudioFileName);
-		files.remove(AudioRecorderEnhancedActivity.unencryptedTempAudioFileName); //should be identical to regular audiorecording file, but keep in case it changes.
-		files.remove(AmbientAudioListener.unencryptedTempAudioFilename);
-		
-		// These files are currently being written to, so they shouldn't be uploaded now
-		files.remove(TextFileManager.getGPSFile().fileName);
-		files.remove(TextFileManager.getAccelFile().fileName);
-		files.remove(TextFileManager.getGyroFile().fileName);
-		files.remove(TextFileManager.getPowerStateFile().fileName);
-		files.remove(TextFileManager.getCallLogFile().fileName);
-		files.remove(TextFileManager.getTextsLogFile().fileName);
-		files.remove(TextFileManager.getDebugLogFile().fileName);
-		files.remove(TextFileManager.getBluetoothLogFile().fileName);
-		files.remove(AmbientAudioListener.currentlyBeingWrittenEncryptedFilename);
-		
-		// These files are only occasionally open, but they may be currently open. If they are, don't upload them
-		files.remove(TextFileManager.getSurveyAnswersFile().fileName);
-		files.remove(TextFileManager.getSurveyTimingsFile().fileName);
-		files.remove(TextFileManager.getWifiLogFile().fileName);
-		
-		return files.toArray(new String[files.size()]);
+	public static String[] getAllUploadableFiles () {
+		return UploadManifest.getUploadableFiles();
 	}
 	
 	/*###############################################################################
@@ -620,6 +986,7 @@ public class TextFileManager {
 //			Log.i("deleting file", file_name);
 			try {
 				appContext.deleteFile(file_name);
+				UploadManifest.fileDeleted(file_name);
 			} catch (Exception e) {
 				Log.e("TextFileManager", "could not delete file " + file_name);
 				e.printStackTrace();
@@ -0,0 +1,180 @@
+package org.beiwe.app.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**The UploadManifest tracks every closed data file that is waiting to be uploaded, so that upload planning
+ * never has to list the files directory.
+ * TextFileManager and AudioFileManager add files when they finish writing them, TextFileManager.delete
+ * removes them.  Each entry records the file's size, data stream and creation time.
+ * The manifest is kept in memory and journaled to disk (outside the files directory, so it is never uploaded)
+ * as "+name,size,stream,created time" and "-name" lines.  At startup the journal is read back and
+ * reconciled against a single scan of the files directory, then rewritten compactly.
+ * This class is thread safe. */
+public class UploadManifest {
+	
+	private static final String MANIFEST_DIRECTORY = "upload_manifest";
+	private static final String MANIFEST_FILE_NAME = "manifest";
+	private static final int COMPACTION_SLACK = 1000; //journal lines allowed beyond the number of entries before a rewrite
+	
+	private static Context appContext = null;
+	private static File manifestFile = null;
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private static int journalLines = 0;
+	
+	/** An uploadable file. */
+	public static class Entry {
+		public final String fileName;
+		public final long size; //value is in bytes
+		public final String stream;
+		public final long createdTime; //value is in milliseconds
+		
+		Entry (String fileName, long size, String stream, long createdTime) {
+			this.fileName = fileName;
+			this.size = size;
+			this.stream = stream;
+			this.createdTime = createdTime;
+		}
+	}
+	
+	/**Loads the manifest, this is the only time the files directory is scanned.  Later calls do nothing.
+	 * @param neverUploaded names of files in the files directory that are not data, e.g. the key file and temp audio files. */
+	static synchronized void initialize (Context context, Collection<String> neverUploaded) {
+		if (manifestFile != null) {
+			return;
+		}
+		appContext = context;
+		manifestFile = new File(context.getDir(MANIFEST_DIRECTORY, Context.MODE_PRIVATE), MANIFEST_FILE_NAME);
+		Map<String, Entry> journaled = readJournal();
+		String[] fileNames = context.getFilesDir().list();
+		if (fileNames != null) {
+			for (String fileName : fileNames) {
+				File file = new File(context.getFilesDir(), fileName);
+				if (neverUploaded.contains(fileName) || file.isDirectory()) {
+					continue;
+				}
+				Entry entry = journaled.get(fileName);
+				entries.put(fileName, new Entry(fileName, file.length(), streamName(fileName),
+						entry != null ? entry.createdTime : file.lastModified()));
+			}
+		}
+		rewriteJournal();
+	}
+	
+	/**Records that a data file has been closed and can be uploaded.
+	 * @param createdTime when the file was created, in milliseconds. */
+	static synchronized void fileClosed (String fileName, long createdTime) {
+		if (manifestFile == null) {
+			return;
+		}
+		Entry entry = new Entry(fileName, new File(appContext.getFilesDir(), fileName).length(), streamName(fileName), createdTime);
+		entries.put(fileName, entry);
+		appendJournal("+" + entry.fileName + "," + entry.size + "," + entry.stream + "," + entry.createdTime);
+	}
+	
+	/** Records that a file is gone, whether it was uploaded or deleted. */
+	static synchronized void fileDeleted (String fileName) {
+		if (manifestFile == null || entries.remove(fileName) == null) {
+			return;
+		}
+		appendJournal("-" + fileName);
+	}
+	
+	/** @return the names of all closed data files, oldest first. */
+	public static synchronized String[] getUploadableFiles () {
+		return entries.keySet().toArray(new String[entries.size()]);
+	}
+	
+	/** @return the entry for a file, or null if the file is not in the manifest. */
+	public static synchronized Entry getEntry (String fileName) {
+		return entries.get(fileName);
+	}
+	
+	/** Data file names look like [patient id]_[stream]_[...].  Returns the stream, or the whole name if it doesn't fit. */
+	public static String streamName (String fileName) {
+		String patientPrefix = PersistentData.getPatientID() + "_";
+		String name = fileName.startsWith(patientPrefix) ? fileName.substring(patientPrefix.length()) : fileName;
+		int underscore = name.indexOf('_');
+		return underscore > 0 ? name.substring(0, underscore) : name;
+	}
+	
+	/*###############################################################################
+	############################### Journal Handling ################################
+	###############################################################################*/
+	
+	private static Map<String, Entry> readJournal () {
+		Map<String, Entry> journaled = new LinkedHashMap<String, Entry>();
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile)));
+		} catch (FileNotFoundException e) { //first run, nothing to read.
+			return journaled;
+		}
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("-")) {
+					journaled.remove(line.substring(1));
+				} else if (line.startsWith("+")) {
+					String[] fields = line.substring(1).split(",");
+					if (fields.length == 4) {
+						journaled.put(fields[0], new Entry(fields[0], Long.parseLong(fields[1]), fields[2], Long.parseLong(fields[3])));
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.e("UploadManifest", "could not read the manifest, rebuilding it: " + e.getMessage());
+		} catch (NumberFormatException e) {
+			Log.e("UploadManifest", "corrupt manifest line, rebuilding it: " + e.getMessage());
+		} finally {
+			try { reader.close(); } catch (IOException e) { e.printStackTrace(); }
+		}
+		return journaled;
+	}
+	
+	private static void appendJournal (String line) {
+		if (journalLines > entries.size() + COMPACTION_SLACK) {
+			rewriteJournal();
+			return;
+		}
+		writeJournal(line + "\n", true);
+		journalLines++;
+	}
+	
+	private static void rewriteJournal () {
+		StringBuilder journal = new StringBuilder();
+		for (Entry entry : entries.values()) {
+			journal.append("+").append(entry.fileName).append(",").append(entry.size).append(",")
+					.append(entry.stream).append(",").append(entry.createdTime).append("\n");
+		}
+		writeJournal(journal.toString(), false);
+		journalLines = entries.size();
+	}
+	
+	/** The in-memory manifest is authoritative while the app runs, a failed journal write only costs the
+	 * creation times of the affected files at the next startup's directory scan. */
+	private static void writeJournal (String data, boolean append) {
+		try {
+			OutputStream outStream = new FileOutputStream(manifestFile, append);
+			try {
+				outStream.write(data.getBytes());
+			} finally {
+				outStream.close();
+			}
+		} catch (IOException e) {
+			Log.e("UploadManifest", "could not write the manifest: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.beiwe.app.storage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**A bounded, lock-free queue of lines waiting to be encrypted and written to a file.
+ * Sensor callbacks push lines in, the WriteBehindWriter thread takes them out.  Adding a line never
+ * blocks and never touches the disk.  When the queue is full the oldest line is thrown away and
+ * counted, so that a slow disk costs us old data rather than stalling a sensor callback.
+ * Lines are held as bytes, in CsvRowEncoders taken from a small pool, so a queued row is copied once
+ * and goes to the encryptor with TextFileManager.writeRow without ever becoming a String. */
+public class WriteBehindQueue {
+
+	private static final int POOL_SIZE = 64;
+	// rows larger than this (long debug log lines) are not kept in the pool, their buffers are left to the GC.
+	private static final int MAX_POOLED_ROW_BYTES = 1024;
+
+	private final ConcurrentLinkedQueue<CsvRowEncoder> lines = new ConcurrentLinkedQueue<CsvRowEncoder>();
+	private final ArrayBlockingQueue<CsvRowEncoder> free = new ArrayBlockingQueue<CsvRowEncoder>(POOL_SIZE);
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final AtomicLong droppedCount = new AtomicLong(0);
+	private final int capacity;
+
+	/** @param capacity the maximum number of lines held before the oldest lines are dropped. */
+	public WriteBehindQueue (int capacity) {
+		this.capacity = capacity;
+	}
+
+	/** Adds a line to the queue, dropping the oldest line if the queue is full. Safe to call from any thread. */
+	public void offer (String line) {
+		add(obtain().append(line));
+	}
+
+	/** Adds a copy of a row's bytes to the queue, see offer(String).  The row may be reset as soon as this returns. */
+	public void offer (CsvRowEncoder row) {
+		add(obtain().append(row));
+	}
+
+	/** @return the oldest line in the queue, or null if the queue is empty.  Pass it to recycle once it is written. */
+	public CsvRowEncoder poll () {
+		CsvRowEncoder line = lines.poll();
+		if (line != null) {
+			size.decrementAndGet();
+		}
+		return line;
+	}
+
+	/** Returns a line taken with poll to the pool, the line must not be used after this. */
+	public void recycle (CsvRowEncoder line) {
+		if (line.array().length <= MAX_POOLED_ROW_BYTES) {
+			free.offer(line.reset());
+		}
+	}
+
+	/** @return the number of lines dropped since the last call, and resets the count. */
+	public long takeDroppedCount () {
+		return droppedCount.getAndSet(0);
+	}
+
+	private CsvRowEncoder obtain () {
+		CsvRowEncoder line = free.poll();
+		if (line == null) { line = new CsvRowEncoder(); }
+		return line;
+	}
+
+	private void add (CsvRowEncoder line) {
+		lines.offer(line);
+		if (size.incrementAndGet() > capacity) {
+			CsvRowEncoder dropped = lines.poll();
+			if (dropped != null) {
+				size.decrementAndGet();
+				droppedCount.incrementAndGet();
+				recycle(dropped);
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package org.beiwe.app.storage;
+
+import android.util.Log;
+
+import org.beiwe.app.CrashHandler;
+
+/**The WriteBehindWriter is a single background thread that empties the write queues of all the
+ * TextFileManager files.  All encryption and disk I/O for queued lines happens here, in batches,
+ * instead of on the sensor and looper threads that produced the data.
+ * The thread sleeps until an enqueue call wakes it, or until MAX_IDLE_INTERVAL passes so that idle
+ * files are still flushed and old blocks sealed.
+ * Any lines dropped because a queue overflowed are reported in the debug log. */
+public class WriteBehindWriter extends Thread {
+	
+	private static final long MAX_IDLE_INTERVAL = 1000; //value is in milliseconds
+	private static WriteBehindWriter writer = null;
+	
+	private static final Object signal = new Object();
+	private static boolean workPending = false;
+	
+	private WriteBehindWriter () {
+		super("write_behind_thread");
+		this.setDaemon(true);
+	}
+	
+	/** Starts the writer thread, idempotent. */
+	public static synchronized void startWriter () {
+		if (writer == null) {
+			writer = new WriteBehindWriter();
+			writer.start();
+		}
+	}
+	
+	/** Tells the writer there is queued data, called by the enqueue calls.  Cheap and safe from any thread. */
+	public static void wake () {
+		synchronized (signal) {
+			if (!workPending) {
+				workPending = true;
+				signal.notify();
+			}
+		}
+	}
+	
+	@Override
+	public void run () {
+		while (true) {
+			try {
+				synchronized (signal) {
+					if (!workPending) {
+						signal.wait(MAX_IDLE_INTERVAL);
+					}
+					workPending = false;
+				}
+			} catch (InterruptedException e) {
+				Log.w("WriteBehindWriter", "write behind thread interrupted, draining queues one last time.");
+				drainSafely();
+				return;
+			}
+			drainSafely();
+		}
+	}
+	
+	/** A failure while writing one pass must not take the thread, and every row still queued, down with it. */
+	private static void drainSafely () {
+		try {
+			TextFileManager.drainAllWriteQueues();
+		} catch (RuntimeException e) {
+			Log.e("WriteBehindWriter", "error draining write queues: " + e.getMessage());
+			e.printStackTrace();
+			CrashHandler.writeCrashlog(e, null);
+		}
+	}
+}
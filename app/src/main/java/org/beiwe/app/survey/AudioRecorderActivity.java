@@ -4,9 +4,7 @@ import android.media.MediaRecorder;
 import android.os.Bundle;
 import android.util.Log;
 
-import org.beiwe.app.storage.PersistentData;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.beiwe.app.storage.SurveyRegistry;
 
 import java.io.IOException;
 
@@ -35,12 +33,11 @@ public class AudioRecorderActivity extends AudioRecorderCommon {
 	public void onCreate( Bundle savedInstanceState ) {
 		super.onCreate( savedInstanceState );
 		//extract bit rate from survey parameters.  If this fails default to the default value (64000).
-		try { JSONObject surveySettings = new JSONObject( PersistentData.getSurveySettings(surveyId) );
-			Log.i("regular audio", PersistentData.getSurveySettings(surveyId));
-			  BIT_RATE = surveySettings.getInt("bit_rate"); }
-		catch (JSONException e) { e.printStackTrace();
-			Log.e("Regular audio recording", "WUH-OH, no bit_rate found, using default (64000).");
-		}
+		SurveyRegistry.Survey survey = SurveyRegistry.get().getSurvey(surveyId);
+		if (survey != null && survey.hasSetting("bit_rate")) {
+			Log.i("regular audio", survey.getSettingsString());
+			BIT_RATE = survey.getSettingInt("bit_rate", BIT_RATE); }
+		else { Log.e("Regular audio recording", "WUH-OH, no bit_rate found, using default (64000)."); }
     }
     
     /*#########################################################
@@ -8,9 +8,7 @@ import android.util.Log;
 
 import org.beiwe.app.CrashHandler;
 import org.beiwe.app.storage.AudioFileManager;
-import org.beiwe.app.storage.PersistentData;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.beiwe.app.storage.SurveyRegistry;
 
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -43,11 +41,9 @@ public class AudioRecorderEnhancedActivity extends AudioRecorderCommon{
 		super.onCreate( savedInstanceState );
 		unencryptedRawAudioFilePath = getApplicationContext().getFilesDir().getAbsolutePath() + "/" + unencryptedRawAudioFileName;
 		//extract sample rate from survey parameters.  If this fails default to the default value (44100).
-		try { JSONObject surveySettings = new JSONObject( PersistentData.getSurveySettings(surveyId) );
-			  SAMPLE_RATE = surveySettings.getInt("sample_rate"); }
-		catch (JSONException e) { e.printStackTrace(); 
-			Log.e("Enhanced audio recording", "WUH-OH, no sample rate found, using default (44100).");
-		}
+		SurveyRegistry.Survey survey = SurveyRegistry.get().getSurvey(surveyId);
+		if (survey != null && survey.hasSetting("sample_rate")) { SAMPLE_RATE = survey.getSettingInt("sample_rate", SAMPLE_RATE); }
+		else { Log.e("Enhanced audio recording", "WUH-OH, no sample rate found, using default (44100)."); }
  
 		BUFFER_SIZE = AudioRecord.getMinBufferSize(SAMPLE_RATE,
 				AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT );
@@ -10,6 +10,7 @@ import org.beiwe.app.JSONUtils;
 import org.beiwe.app.R;
 import org.beiwe.app.session.SessionActivity;
 import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.SurveyRegistry;
 import org.beiwe.app.storage.TextFileManager;
 import org.beiwe.app.ui.user.MainMenuActivity;
 import org.beiwe.app.ui.utils.SurveyNotifications;
@@ -121,15 +122,13 @@ public class SurveyActivity extends SessionActivity implements
 		Boolean randomizeWithMemory = false;
 		Boolean randomize = false;
 		int numberQuestions = 0;
-		try {
-			JSONObject surveySettings = new JSONObject(PersistentData.getSurveySettings(surveyId));
-			randomizeWithMemory = surveySettings.optBoolean(getString(R.string.randomizeWithMemory), false);
-			randomize = surveySettings.optBoolean(getString(R.string.randomize), false);
-			numberQuestions = surveySettings.optInt(getString(R.string.numberQuestions), 0);
-		} catch (JSONException e) {
-			Log.e("Survey Activity", "There was an error parsing survey settings");
-			e.printStackTrace();
+		SurveyRegistry.Survey survey = SurveyRegistry.get().getSurvey(surveyId);
+		if (survey != null) {
+			randomizeWithMemory = survey.getSettingBoolean(getString(R.string.randomizeWithMemory), false);
+			randomize = survey.getSettingBoolean(getString(R.string.randomize), false);
+			numberQuestions = survey.getSettingInt(getString(R.string.numberQuestions), 0);
 		}
+		else { Log.e("Survey Activity", "There was an error parsing survey settings"); }
 
 		try { // Get survey content as an array of questions; each question is a JSON object
 			JSONArray jsonQuestions = new JSONArray(PersistentData.getSurveyContent(surveyId));
@@ -5,18 +5,11 @@ import android.content.Intent;
 import android.util.Log;
 
 import org.beiwe.app.MainService;
-import org.beiwe.app.CrashHandler;
-import org.beiwe.app.JSONUtils;
 import org.beiwe.app.R;
-import org.beiwe.app.storage.PersistentData;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.beiwe.app.storage.SurveyRegistry;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
-import java.util.List;
   
 //TODO: Low priority. Eli. document.
 /**I am ... 85% certain time zones work like this:
@@ -28,16 +21,12 @@ The result is that any currently-waiting event triggers will not be changed by a
 public class SurveyScheduler {
 	
 	public static void checkImmediateTriggerSurvey(Context appContext, String surveyId) {
-		JSONObject surveySettings;
-		try { surveySettings = new JSONObject( PersistentData.getSurveySettings(surveyId) ); }
-		catch (JSONException e) {
-			Log.e("SurveyScheduler", "There was an error parsing survey settings");
-			e.printStackTrace();
-			CrashHandler.writeCrashlog(e, appContext);
-			surveySettings = new JSONObject();
-		}
-		// Log.i("SurveyScheduler", "id: " + surveyId + ", survey settings: " + surveySettings );
-		if (surveySettings.optBoolean(appContext.getString(R.string.triggeredSurvey), false) ) {
+		SurveyRegistry.Survey survey = SurveyRegistry.get().getSurvey(surveyId);
+		if (survey == null) {
+			Log.e("SurveyScheduler", "checked immediate trigger for a survey that does not exist: " + surveyId);
+			return; }
+		// Log.i("SurveyScheduler", "id: " + surveyId + ", survey settings: " + survey.getSettingsString() );
+		if (survey.getSettingBoolean(appContext.getString(R.string.triggeredSurvey), false) ) {
 //			Log.i("SurveyScheduler", "it's triggered! yaaay!");
 			appContext.sendBroadcast(new Intent(surveyId));
 		}
@@ -45,34 +34,24 @@ public class SurveyScheduler {
 	
 	public static void scheduleSurvey(String surveyId) {
 		int today;
-		JSONArray JSONTimes;
-		JSONArray dayJSON;
 		ArrayList<Integer> dayInts;
 		ArrayList<ArrayList<Integer>> timesList = new ArrayList<ArrayList<Integer>>(7);
-		String timeString = PersistentData.getSurveyTimes(surveyId);
+		//the registry parsed and sorted the times when it was built.
+		SurveyRegistry.Survey survey = SurveyRegistry.get().getSurvey(surveyId);
+		//If this fails we have significant problems, but probably the errors come from external factors.
+		if (survey == null || !survey.hasValidTimes()) { throw new NullPointerException("could not parse survey times for survey " + surveyId); }
 		
 		Calendar thisDay = Calendar.getInstance();
 		//turns out the first day of the week is not necessarily Sunday. So, in case the user is in such a Locale we manually set that.
 		thisDay.setFirstDayOfWeek(Calendar.SUNDAY);
 		today = thisDay.get(Calendar.DAY_OF_WEEK) - 1;
 		
-		try { JSONTimes = new JSONArray(timeString); }
-		catch (JSONException e) { e.printStackTrace(); //If this fails we have significant problems, but probably the errors come from external factors.
-			throw new NullPointerException(e.getMessage()); }
-		List<String> jsonDays = JSONUtils.jsonArrayToStringList(JSONTimes);
-		
 		//create a list of days of the week, with order like this:
 		// 0: today, 1: tomorrow, 2: day after ...
-		List<String> reorderedDays = new ArrayList<String>();
-		reorderedDays.addAll( jsonDays.subList( today, jsonDays.size() ) );
-		reorderedDays.addAll( jsonDays.subList(0, today) );
-		
 		for (int i=0; i <= 6; i++) {
-			try { dayJSON = new JSONArray(reorderedDays.get(i)); }  //convert to json array
-			catch (JSONException e) { e.printStackTrace(); //Again, if this crashes we have problems but they probably come from external factors.
-				throw new NullPointerException(e.getMessage()); }
-			dayInts = JSONUtils.jsonArrayToIntegerList(dayJSON); //convert to (iteraable) list of ints
-			Collections.sort(dayInts); //ensure sorted because... because.
+			int day = (today + i) % 7;
+			dayInts = new ArrayList<Integer>( survey.getTimeCount(day) );
+			for (int j = 0; j < survey.getTimeCount(day); j++) { dayInts.add( survey.getTime(day, j) ); }
 			timesList.add( dayInts );
 		}
 //		Log.d("Scheduler", "day list before sorting: " + reorderedDays);
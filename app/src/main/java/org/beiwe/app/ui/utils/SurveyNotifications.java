@@ -13,15 +13,13 @@ import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
-import org.beiwe.app.JSONUtils;
 import org.beiwe.app.R;
 import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.SurveyRegistry;
 import org.beiwe.app.storage.TextFileManager;
 import org.beiwe.app.survey.AudioRecorderActivity;
 import org.beiwe.app.survey.AudioRecorderEnhancedActivity;
 import org.beiwe.app.survey.SurveyActivity;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.util.List;
 
@@ -37,9 +35,9 @@ public class SurveyNotifications {
 	/**Show notifications for each survey in surveyIds, as long as that survey exists in PersistentData. */
 	public static void showSurveyNotifications(Context appContext, List<String> surveyIds) {
 		if (surveyIds != null) {
-			List<String> idsOfStoredSurveys = JSONUtils.jsonArrayToStringList(PersistentData.getSurveyIdsJsonArray());
+			SurveyRegistry storedSurveys = SurveyRegistry.get();
 			for (String surveyId : surveyIds) {
-				if (idsOfStoredSurveys.contains(surveyId)) {
+				if (storedSurveys.contains(surveyId)) {
 					displaySurveyNotification(appContext, surveyId);
 				} else {
 					String errorMsg = "Tried to show notification for survey ID " + surveyId +
@@ -247,14 +245,9 @@ public class SurveyNotifications {
 	 * any other outcome (including an inability to determine type) returns AudioRecorderActivity.class instead. */
 	@SuppressWarnings("rawtypes")
 	public static Class getAudioSurveyClass (String surveyId) {
-		JSONObject surveySettings;
-		try {
-			surveySettings = new JSONObject(PersistentData.getSurveySettings(surveyId));
-			if (surveySettings.getString("audio_survey_type").equals("raw"))
-				return AudioRecorderEnhancedActivity.class;
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
+		SurveyRegistry.Survey survey = SurveyRegistry.get().getSurvey(surveyId);
+		if (survey != null && survey.getSettingString("audio_survey_type", "").equals("raw"))
+			return AudioRecorderEnhancedActivity.class;
 		return AudioRecorderActivity.class;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package org.beiwe.app.listeners;
+
+import org.beiwe.app.storage.CsvRowEncoder;
+import org.beiwe.app.storage.ImuBlockFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**An IMU binary block converted back to CSV with ImuBlockFormat.appendCsv must be byte for byte the CSV the
+ * listener would have written for the same samples, with either float encoding.  The samples go through a
+ * SensorSampleBuffer and are encoded the way TextFileManager.appendSamplesToBlock encodes them.
+ * The gyroscope's legacy rows are formatted in the default locale and appendCsv always uses Locale.ROOT,
+ * so the default locale is pinned to one with a decimal point here (see appendCsv). */
+public class ImuRowFormatTest {
+
+	private Locale defaultLocale;
+
+	@Before
+	public void pinLocale () {
+		defaultLocale = Locale.getDefault();
+		Locale.setDefault(Locale.US);
+	}
+
+	@After
+	public void restoreLocale () {
+		Locale.setDefault(defaultLocale);
+	}
+
+	@Test
+	public void accelerometerRowsMatch () throws IOException {
+		for (String floatEncoding : new String[] { ImuBlockFormat.FLOAT32_ENCODING, ImuBlockFormat.GORILLA_ENCODING }) {
+			assertRoundTrip(AccelerometerListener.rowFormat, floatEncoding, ImuBlockFormat.SHORTEST_FLOAT_TEXT, 1);
+			assertRoundTrip(AccelerometerListener.rowFormat, floatEncoding, ImuBlockFormat.SHORTEST_FLOAT_TEXT, 2);
+		}
+	}
+
+	@Test
+	public void gyroscopeRowsMatch () throws IOException {
+		for (String floatEncoding : new String[] { ImuBlockFormat.FLOAT32_ENCODING, ImuBlockFormat.GORILLA_ENCODING }) {
+			assertRoundTrip(GyroscopeListener.rowFormat, floatEncoding, ImuBlockFormat.FIXED16_FLOAT_TEXT, 3);
+			assertRoundTrip(GyroscopeListener.rowFormat, floatEncoding, ImuBlockFormat.FIXED16_FLOAT_TEXT, 4);
+		}
+	}
+
+	/** Encodes a few blocks of samples both ways and compares them. */
+	private static void assertRoundTrip (SensorSampleBuffer.RowFormat format, String floatEncoding, String floatText, long seed)
+			throws IOException {
+		Random random = new Random(seed);
+		SensorSampleBuffer.Pool pool = new SensorSampleBuffer.Pool(1, format);
+		ImuBlockFormat.BlockEncoder encoder = new ImuBlockFormat.BlockEncoder();
+		CsvRowEncoder row = new CsvRowEncoder();
+		long timestamp = 1617225600000L;
+		int accuracy = SensorSampleBuffer.ACCURACY_UNKNOWN;
+		for (int block = 0; block < 20; block++) {
+			SensorSampleBuffer samples = pool.obtain();
+			int count = 1 + random.nextInt(SensorSampleBuffer.CAPACITY);
+			for (int i = 0; i < count; i++) {
+				// mostly increasing timestamps, with repeats and the occasional clock step backwards.
+				timestamp += random.nextInt(10) == 0 ? -random.nextInt(2000) : random.nextInt(30);
+				if (random.nextInt(40) == 0) { accuracy = random.nextInt(4); }
+				samples.add(timestamp, accuracy, sample(random), sample(random), sample(random));
+			}
+
+			StringBuilder expected = new StringBuilder();
+			encoder.reset();
+			for (int i = 0; i < samples.size(); i++) {
+				row.reset();
+				samples.appendRow(row, i);
+				expected.append(row.toString()).append('\n');
+				encoder.add(samples.getTimestamp(i), samples.getAccuracy(i), samples.getX(i), samples.getY(i), samples.getZ(i));
+			}
+			samples.recycle();
+
+			StringBuilder actual = new StringBuilder();
+			ImuBlockFormat.appendCsv(encoder.encode(floatEncoding), floatEncoding, floatText, actual);
+			assertArrayEquals(floatEncoding + " block " + block, expected.toString().getBytes(), actual.toString().getBytes());
+		}
+	}
+
+	/** @return a reading like a sensor's, or now and then an arbitrary float (NaN, infinities, subnormals). */
+	private static float sample (Random random) {
+		switch (random.nextInt(20)) {
+			case 0: return Float.intBitsToFloat(random.nextInt());
+			case 1: return 0f;
+			case 2: return -0f;
+			default: return (float) (random.nextGaussian() * 2 + 9.80665);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package org.beiwe.app.networking;
+
+import android.content.SharedPreferences;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**Runs ResumableUploader against an in-process HTTPS server that keeps the chunks it receives, and can drop
+ * the connection after storing a chunk or forget part of the file, to check that uploads resume from the
+ * right offset.  The server's certificate is made with the JDK's keytool when the test starts. */
+public class ResumableUploaderTest {
+
+	private static final String SECURITY_PARAMETERS = "patient_id=test&password=test&device_id=test&";
+	private static final int CHUNK = ResumableUploader.CHUNK_SIZE;
+
+	private File directory;
+	private File file;
+	private byte[] fileContents;
+	private HttpsServer server;
+	private ChunkServer chunkServer;
+	private URL uploadUrl;
+	private MemoryPreferences offsetIndex;
+	private SSLSocketFactory defaultSocketFactory;
+
+	@Before
+	public void startServer () throws Exception {
+		directory = File.createTempFile("resumable_upload", "");
+		if (!directory.delete() || !directory.mkdir()) { throw new IOException("could not make " + directory); }
+		fileContents = new byte[2 * CHUNK + CHUNK / 3];
+		new Random(12).nextBytes(fileContents);
+		file = new File(directory, "1234567890_accel.csv");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(fileContents);
+		out.close();
+
+		SSLContext sslContext = makeSslContext(new File(directory, "keystore.p12"));
+		defaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+		HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
+
+		chunkServer = new ChunkServer();
+		server = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+		server.createContext("/upload_chunk", chunkServer);
+		server.start();
+		uploadUrl = new URL("https://localhost:" + server.getAddress().getPort() + "/upload_chunk");
+		offsetIndex = new MemoryPreferences();
+	}
+
+	@After
+	public void stopServer () {
+		if (server != null) { server.stop(0); }
+		if (defaultSocketFactory != null) { HttpsURLConnection.setDefaultSSLSocketFactory(defaultSocketFactory); }
+		if (directory != null) {
+			File[] files = directory.listFiles();
+			if (files != null) { for (File f : files) { f.delete(); } }
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void uploadsInChunks () throws IOException {
+		assertEquals(200, upload());
+		assertArrayEquals(fileContents, chunkServer.stored.toByteArray());
+		assertEquals(Arrays.asList(0L, (long) CHUNK, 2L * CHUNK), chunkServer.requestedOffsets);
+		assertFalse("a finished file must leave the offset index", offsetIndex.contains(file.getName()));
+	}
+
+	/** The server stores the second chunk and the connection drops before its response arrives: the next cycle
+	 * resumes from the last offset we heard about, and the server moves us on to the offset it really holds. */
+	@Test
+	public void resumesAfterADroppedConnection () throws IOException {
+		chunkServer.dropAfterStoringRequest = 2;
+		try {
+			upload();
+			fail("the dropped connection should have failed the upload");
+		} catch (IOException expected) { }
+		assertEquals(CHUNK, offsetIndex.getLong(file.getName(), -1));
+		assertEquals(2 * CHUNK, chunkServer.stored.size());
+
+		assertEquals(200, upload());
+		assertArrayEquals(fileContents, chunkServer.stored.toByteArray());
+		// the resent chunk is not stored twice, the server answers with its own offset instead.
+		assertEquals(Arrays.asList(0L, (long) CHUNK, (long) CHUNK, 2L * CHUNK), chunkServer.requestedOffsets);
+		assertFalse(offsetIndex.contains(file.getName()));
+	}
+
+	/** The server lost the end of what it had acknowledged (say it was restored from a backup): it answers with an
+	 * offset behind ours and the upload goes back and resends from there. */
+	@Test
+	public void goesBackWhenTheServerOffsetMovesBackwards () throws IOException {
+		offsetIndex.edit().putLong(file.getName(), 2L * CHUNK).apply();
+		chunkServer.stored.write(fileContents, 0, CHUNK);
+
+		assertEquals(200, upload());
+		assertArrayEquals(fileContents, chunkServer.stored.toByteArray());
+		assertEquals(Arrays.asList(2L * CHUNK, (long) CHUNK, 2L * CHUNK), chunkServer.requestedOffsets);
+		assertFalse(offsetIndex.contains(file.getName()));
+	}
+
+	/** A recorded offset past the end of the file is not trusted, the upload starts over. */
+	@Test
+	public void ignoresAnImpossibleRecordedOffset () throws IOException {
+		offsetIndex.edit().putLong(file.getName(), fileContents.length + 1).apply();
+		assertEquals(200, upload());
+		assertArrayEquals(fileContents, chunkServer.stored.toByteArray());
+		assertEquals(0L, (long) chunkServer.requestedOffsets.get(0));
+	}
+
+	/** A server that keeps answering with the offset we sent is not making progress, we give up for this cycle. */
+	@Test
+	public void stopsWhenTheServerMakesNoProgress () throws IOException {
+		chunkServer.refuseChunks = true;
+		assertEquals(-1, upload());
+		assertEquals(Arrays.asList(0L), chunkServer.requestedOffsets);
+		assertEquals(0, chunkServer.stored.size());
+	}
+
+	private int upload () throws IOException {
+		return ResumableUploader.upload(offsetIndex, SECURITY_PARAMETERS, file, uploadUrl, System.currentTimeMillis() + 60000);
+	}
+
+	/*###############################################################################
+	################################ Test server ####################################
+	###############################################################################*/
+
+	/**Keeps the bytes of one file.  A chunk at the offset the server holds is appended, any other chunk is
+	 * ignored; either way the response is the number of bytes held. */
+	private static class ChunkServer implements HttpHandler {
+		final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+		final List<Long> requestedOffsets = new ArrayList<Long>();
+		int dropAfterStoringRequest = 0;  // 1-based request number, 0 for never
+		boolean refuseChunks = false;
+
+		@Override
+		public synchronized void handle (HttpExchange exchange) throws IOException {
+			byte[] body = readAll(exchange.getRequestBody());
+			// the parameters are ASCII and come before the raw chunk, ISO-8859-1 maps every byte to one char.
+			String text = new String(body, "ISO-8859-1");
+			int chunkStart = text.indexOf("&chunk=") + "&chunk=".length();
+			Map<String, String> parameters = new HashMap<String, String>();
+			for (String parameter : text.substring(0, chunkStart - "chunk=".length()).split("&")) {
+				int equals = parameter.indexOf('=');
+				parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+			}
+			if (!text.startsWith(SECURITY_PARAMETERS)) {
+				throw new IOException("missing security parameters");
+			}
+			long offset = Long.parseLong(parameters.get("offset"));
+			requestedOffsets.add(offset);
+			if (!refuseChunks && offset == stored.size()) {
+				stored.write(body, chunkStart, body.length - chunkStart);
+			}
+			if (requestedOffsets.size() == dropAfterStoringRequest) {
+				// closing the exchange without a response drops the connection.
+				exchange.close();
+				return;
+			}
+			byte[] response = (refuseChunks ? String.valueOf(offset) : String.valueOf(stored.size())).getBytes();
+			exchange.sendResponseHeaders(200, response.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(response);
+			out.close();
+		}
+	}
+
+	private static byte[] readAll (InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		int count;
+		while ((count = in.read(buffer)) != -1) { out.write(buffer, 0, count); }
+		in.close();
+		return out.toByteArray();
+	}
+
+	/** @return a context that serves, and trusts, a new self-signed certificate for localhost. */
+	private static SSLContext makeSslContext (File keystoreFile) throws Exception {
+		String password = "password";
+		String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "RSA", "-keysize", "2048",
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+				"-storetype", "PKCS12", "-keystore", keystoreFile.getPath(), "-storepass", password, "-keypass", password)
+				.redirectErrorStream(true).start();
+		readAll(process.getInputStream());
+		if (process.waitFor() != 0) { throw new IOException("keytool could not make a test certificate"); }
+
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		FileInputStream in = new FileInputStream(keystoreFile);
+		keyStore.load(in, password.toCharArray());
+		in.close();
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, password.toCharArray());
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+		return context;
+	}
+
+	/*###############################################################################
+	############################## Offset index #####################################
+	###############################################################################*/
+
+	/** A SharedPreferences in a HashMap, standing in for the offset index. */
+	private static class MemoryPreferences implements SharedPreferences {
+		private final Map<String, Object> values = new HashMap<String, Object>();
+
+		@Override public Map<String, ?> getAll () { return new HashMap<String, Object>(values); }
+		@Override public String getString (String key, String defaultValue) { return values.containsKey(key) ? (String) values.get(key) : defaultValue; }
+		@SuppressWarnings("unchecked")
+		@Override public Set<String> getStringSet (String key, Set<String> defaultValue) { return values.containsKey(key) ? (Set<String>) values.get(key) : defaultValue; }
+		@Override public int getInt (String key, int defaultValue) { return values.containsKey(key) ? (Integer) values.get(key) : defaultValue; }
+		@Override public long getLong (String key, long defaultValue) { return values.containsKey(key) ? (Long) values.get(key) : defaultValue; }
+		@Override public float getFloat (String key, float defaultValue) { return values.containsKey(key) ? (Float) values.get(key) : defaultValue; }
+		@Override public boolean getBoolean (String key, boolean defaultValue) { return values.containsKey(key) ? (Boolean) values.get(key) : defaultValue; }
+		@Override public boolean contains (String key) { return values.containsKey(key); }
+		@Override public void registerOnSharedPreferenceChangeListener (OnSharedPreferenceChangeListener listener) { }
+		@Override public void unregisterOnSharedPreferenceChangeListener (OnSharedPreferenceChangeListener listener) { }
+
+		@Override public Editor edit () {
+			return new Editor() {
+				private final Map<String, Object> changes = new HashMap<String, Object>();
+				private boolean clear = false;
+
+				@Override public Editor putString (String key, String value) { changes.put(key, value); return this; }
+				@Override public Editor putStringSet (String key, Set<String> value) { changes.put(key, value); return this; }
+				@Override public Editor putInt (String key, int value) { changes.put(key, value); return this; }
+				@Override public Editor putLong (String key, long value) { changes.put(key, value); return this; }
+				@Override public Editor putFloat (String key, float value) { changes.put(key, value); return this; }
+				@Override public Editor putBoolean (String key, boolean value) { changes.put(key, value); return this; }
+				// a removal is recorded as a change to null, as the Android editor does.
+				@Override public Editor remove (String key) { changes.put(key, null); return this; }
+				@Override public Editor clear () { clear = true; return this; }
+				@Override public boolean commit () { apply(); return true; }
+				@Override public void apply () {
+					if (clear) { values.clear(); }
+					for (Map.Entry<String, Object> change : changes.entrySet()) {
+						if (change.getValue() == null) { values.remove(change.getKey()); }
+						else { values.put(change.getKey(), change.getValue()); }
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.beiwe.app.storage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**Rows built with a CsvRowEncoder must be byte for byte what string concatenation wrote, and must come out
+ * of the write queue unchanged.  Their speed is measured by CsvRowEncoderBenchmark in the tools module. */
+public class CsvRowEncoderTest {
+
+	private static final long[] LONGS = { 0, 1, -1, 9, 10, -10, 1617225600123L, Long.MAX_VALUE, Long.MIN_VALUE };
+	private static final float[] FLOATS = { 0f, -0f, 1f, -9.80665f, 0.1f, 1e-10f, 3.4028235e38f, Float.NaN,
+			Float.NEGATIVE_INFINITY, Float.MIN_VALUE };
+	private static final double[] DOUBLES = { 0d, -0d, 42.3601, -71.0589, 1e21, 1e-7, Double.NaN, Double.MAX_VALUE };
+
+	@Test
+	public void numbersMatchConcatenation () {
+		CsvRowEncoder row = new CsvRowEncoder();
+		for (long value : LONGS) { assertRow("" + value, row.reset().append(value)); }
+		for (int value : new int[] { 0, -7, Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+			assertRow("" + value, row.reset().append(value));
+		}
+		for (float value : FLOATS) { assertRow("" + value, row.reset().append(value)); }
+		for (double value : DOUBLES) { assertRow("" + value, row.reset().append(value)); }
+	}
+
+	@Test
+	public void randomRowsMatchConcatenation () {
+		Random random = new Random(23);
+		CsvRowEncoder row = new CsvRowEncoder();
+		for (int i = 0; i < 10000; i++) {
+			long timestamp = random.nextLong();
+			double latitude = random.nextDouble() * 180 - 90;
+			float accuracy = Float.intBitsToFloat(random.nextInt());
+			String ssid = "wifi " + random.nextInt(1000) + (i % 7 == 0 ? " caf\u00e9" : "");
+			String expected = timestamp + TextFileManager.DELIMITER + latitude + TextFileManager.DELIMITER
+					+ accuracy + TextFileManager.DELIMITER + ssid;
+			row.reset().append(timestamp).delimiter().append(latitude).delimiter().append(accuracy).delimiter().append(ssid);
+			assertRow(expected, row);
+		}
+	}
+
+	@Test
+	public void queuedRowsComeOutUnchanged () {
+		WriteBehindQueue queue = new WriteBehindQueue(3);
+		CsvRowEncoder row = new CsvRowEncoder();
+		for (int i = 0; i < 5; i++) {
+			queue.offer(row.reset().append(1000L + i).delimiter().append("row " + i));
+		}
+		queue.offer("a line");
+		assertEquals(3, queue.takeDroppedCount());
+		for (String expected : new String[] { "1003,row 3", "1004,row 4", "a line" }) {
+			CsvRowEncoder line = queue.poll();
+			assertRow(expected, line);
+			queue.recycle(line);
+		}
+		assertNull(queue.poll());
+		// recycled encoders come back empty.
+		queue.offer("again");
+		assertRow("again", queue.poll());
+	}
+
+	private static void assertRow (String expected, CsvRowEncoder row) {
+		byte[] actual = new byte[row.length()];
+		System.arraycopy(row.array(), 0, actual, 0, row.length());
+		assertArrayEquals(expected, expected.getBytes(), actual);
+	}
+}
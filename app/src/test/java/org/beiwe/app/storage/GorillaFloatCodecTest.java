@@ -0,0 +1,146 @@
+package org.beiwe.app.storage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**Round trip properties of GorillaFloatCodec, on its own and as the float encoding of ImuBlockFormat blocks.
+ * Floats are compared by their raw bits, so -0 and NaN payloads must survive as well.  The speed of the
+ * encodings is measured by ImuBlockBenchmark in the tools module. */
+public class GorillaFloatCodecTest {
+
+	private static final int ROUNDS = 500;
+
+	@Test
+	public void randomColumnsRoundTrip () throws IOException {
+		Random random = new Random(25);
+		for (int round = 0; round < ROUNDS; round++) {
+			float[][] columns = new float[1 + random.nextInt(4)][];
+			for (int c = 0; c < columns.length; c++) { columns[c] = column(random, random.nextInt(300), round % 4); }
+			assertRoundTrip(columns);
+		}
+	}
+
+	@Test
+	public void edgeCasesRoundTrip () throws IOException {
+		float nan = Float.intBitsToFloat(0x7fc00001);  // a NaN with a payload
+		assertRoundTrip(new float[][] {
+				{ 0f },
+				{ -0f, 0f, -0f, -0f },
+				{ Float.NaN, nan, Float.NaN, 1f, nan },
+				{ Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY },
+				{ Float.intBitsToFloat(0x00000001), Float.intBitsToFloat(0x80000000), Float.intBitsToFloat(0xffffffff) },
+				{ 1f, 1f, 1f, 1f, 1f, 1f, 1f, 1f, 1f },
+				{},
+				{ 9.80665f } });
+	}
+
+	@Test
+	public void truncatedColumnIsAnIOException () {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GorillaFloatCodec.Encoder encoder = new GorillaFloatCodec.Encoder(out);
+		float[] values = column(new Random(1), 100, 3);
+		for (float value : values) { encoder.write(value); }
+		encoder.finish();
+		byte[] encoded = out.toByteArray();
+		byte[] truncated = new byte[encoded.length / 2];
+		System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+		GorillaFloatCodec.Decoder decoder = new GorillaFloatCodec.Decoder(truncated, 0);
+		try {
+			for (int i = 0; i < values.length; i++) { decoder.read(); }
+			fail("read past the end of a truncated column");
+		} catch (IOException expected) { }
+	}
+
+	/** A block must convert to the same CSV whichever float encoding it was written with. */
+	@Test
+	public void blocksMatchFloat32Blocks () throws IOException {
+		Random random = new Random(7);
+		ImuBlockFormat.BlockEncoder encoder = new ImuBlockFormat.BlockEncoder();
+		for (int round = 0; round < ROUNDS; round++) {
+			encoder.reset();
+			int size = random.nextInt(200);
+			float[][] columns = { column(random, size, round % 4), column(random, size, round % 4), column(random, size, round % 4) };
+			long timestamp = random.nextLong() >> 20;
+			for (int i = 0; i < size; i++) {
+				timestamp += random.nextInt(40) - 5;
+				encoder.add(timestamp, random.nextInt(20) == 0 ? ImuBlockFormat.ACCURACY_UNKNOWN : 3, columns[0][i], columns[1][i], columns[2][i]);
+			}
+			for (String floatText : new String[] { ImuBlockFormat.SHORTEST_FLOAT_TEXT, ImuBlockFormat.FIXED16_FLOAT_TEXT }) {
+				StringBuilder float32 = new StringBuilder();
+				StringBuilder gorilla = new StringBuilder();
+				ImuBlockFormat.appendCsv(encoder.encode(ImuBlockFormat.FLOAT32_ENCODING), ImuBlockFormat.FLOAT32_ENCODING, floatText, float32);
+				ImuBlockFormat.appendCsv(encoder.encode(ImuBlockFormat.GORILLA_ENCODING), ImuBlockFormat.GORILLA_ENCODING, floatText, gorilla);
+				assertEquals("round " + round, float32.toString(), gorilla.toString());
+			}
+		}
+	}
+
+	/** The point of the encoding: sensor readings take less space than float32 columns. */
+	@Test
+	public void sensorReadingsAreSmallerThanFloat32 () {
+		Random random = new Random(11);
+		ImuBlockFormat.BlockEncoder encoder = new ImuBlockFormat.BlockEncoder();
+		float[][] columns = { column(random, 1000, 3), column(random, 1000, 3), column(random, 1000, 3) };
+		long timestamp = 1617225600000L;
+		for (int i = 0; i < 1000; i++) {
+			timestamp += 10 + random.nextInt(3);
+			encoder.add(timestamp, 3, columns[0][i], columns[1][i], columns[2][i]);
+		}
+		int float32 = encoder.encode(ImuBlockFormat.FLOAT32_ENCODING).length;
+		int gorilla = encoder.encode(ImuBlockFormat.GORILLA_ENCODING).length;
+		assertTrue("gorilla block of " + gorilla + " bytes is not smaller than the float32 block of " + float32,
+				gorilla < float32);
+	}
+
+	/*###############################################################################
+	################################## Helpers ######################################
+	###############################################################################*/
+
+	/** Encodes the columns one after another into one stream, then decodes them and compares raw bits. */
+	private static void assertRoundTrip (float[][] columns) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GorillaFloatCodec.Encoder encoder = new GorillaFloatCodec.Encoder(out);
+		for (float[] column : columns) {
+			for (float value : column) { encoder.write(value); }
+			encoder.finish();
+		}
+		byte[] encoded = out.toByteArray();
+		int position = 0;
+		for (int c = 0; c < columns.length; c++) {
+			GorillaFloatCodec.Decoder decoder = new GorillaFloatCodec.Decoder(encoded, position);
+			int[] expected = new int[columns[c].length];
+			int[] actual = new int[columns[c].length];
+			for (int i = 0; i < expected.length; i++) {
+				expected[i] = Float.floatToRawIntBits(columns[c][i]);
+				actual[i] = Float.floatToRawIntBits(decoder.read());
+			}
+			assertArrayEquals("column " + c, expected, actual);
+			position = decoder.finish();
+		}
+		assertEquals("the columns must use the whole stream", encoded.length, position);
+	}
+
+	/** @param kind 0: random bits, 1: long runs of repeats, 2: mixed, 3: a sensor reading with small noise. */
+	private static float[] column (Random random, int size, int kind) {
+		float[] values = new float[size];
+		float value = (float) random.nextGaussian();
+		for (int i = 0; i < size; i++) {
+			switch (kind) {
+				case 0: value = Float.intBitsToFloat(random.nextInt()); break;
+				case 1: if (random.nextInt(10) == 0) { value = (float) random.nextGaussian(); } break;
+				case 2: value = random.nextBoolean() ? Float.intBitsToFloat(random.nextInt()) : value; break;
+				default: value = (float) (9.80665 + random.nextGaussian() * 0.05); break;
+			}
+			values[i] = value;
+		}
+		return values;
+	}
+}
@@ -0,0 +1,89 @@
+package org.beiwe.app.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**Building GPS rows by string concatenation against a CsvRowEncoder, and handing a row through the write queue
+ * as a String (what enqueueRow used to do) against as pooled bytes.  The difference is mostly garbage rather
+ * than time, run with -prof gc to see the bytes allocated per row:
+ *     ./gradlew :tools:jmh -Pbenchmarks="CsvRowEncoderBenchmark -prof gc" */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvRowEncoderBenchmark {
+
+	private static final int ROWS = 1024;  // a power of two, see next()
+
+	private final long[] timestamps = new long[ROWS];
+	private final double[] latitudes = new double[ROWS];
+	private final double[] longitudes = new double[ROWS];
+	private final float[] accuracies = new float[ROWS];
+	private int index = 0;
+
+	private final CsvRowEncoder row = new CsvRowEncoder();
+	private final ConcurrentLinkedQueue<String> stringQueue = new ConcurrentLinkedQueue<String>();
+	private final WriteBehindQueue queue = new WriteBehindQueue(ROWS);
+
+	@Setup
+	public void makeRows () {
+		Random random = new Random(5);
+		for (int i = 0; i < ROWS; i++) {
+			timestamps[i] = 1617225600000L + i * 1000L;
+			latitudes[i] = random.nextDouble() * 180 - 90;
+			longitudes[i] = random.nextDouble() * 360 - 180;
+			accuracies[i] = random.nextFloat() * 50;
+		}
+	}
+
+	@Benchmark
+	public byte[] concatenation () {
+		int i = next();
+		String data = timestamps[i] + "," + latitudes[i] + "," + longitudes[i] + "," + accuracies[i];
+		return data.getBytes();
+	}
+
+	@Benchmark
+	public int encoder () {
+		int i = next();
+		row.reset().append(timestamps[i]).delimiter().append(latitudes[i]).delimiter().append(longitudes[i])
+				.delimiter().append(accuracies[i]);
+		return row.length();
+	}
+
+	@Benchmark
+	public byte[] queueHandOffAsString () {
+		encoder();
+		stringQueue.offer(row.toString());
+		return stringQueue.poll().getBytes();
+	}
+
+	@Benchmark
+	public int queueHandOffAsBytes () {
+		encoder();
+		queue.offer(row);
+		CsvRowEncoder line = queue.poll();
+		int length = line.length();
+		queue.recycle(line);
+		return length;
+	}
+
+	private int next () {
+		index = (index + 1) & (ROWS - 1);
+		return index;
+	}
+}
@@ -0,0 +1,61 @@
+package org.beiwe.app.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**Encoding a block of accelerometer samples, and converting it back to CSV, in each float encoding of
+ * ImuBlockFormat.  The times are per block of SAMPLES samples. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImuBlockBenchmark {
+
+	private static final int SAMPLES = 1000;
+
+	@Param({ ImuBlockFormat.FLOAT32_ENCODING, ImuBlockFormat.GORILLA_ENCODING })
+	public String floatEncoding;
+
+	private final ImuBlockFormat.BlockEncoder encoder = new ImuBlockFormat.BlockEncoder();
+	private byte[] block;
+
+	/** A resting phone: gravity on one axis, small noise on all three, samples about 10ms apart. */
+	@Setup
+	public void makeBlock () {
+		Random random = new Random(11);
+		long timestamp = 1617225600000L;
+		for (int i = 0; i < SAMPLES; i++) {
+			timestamp += 10 + random.nextInt(3);
+			encoder.add(timestamp, 3, (float) (random.nextGaussian() * 0.05), (float) (random.nextGaussian() * 0.05),
+					(float) (9.80665 + random.nextGaussian() * 0.05));
+		}
+		block = encoder.encode(floatEncoding);
+	}
+
+	@Benchmark
+	public byte[] encode () {
+		return encoder.encode(floatEncoding);
+	}
+
+	@Benchmark
+	public int decodeToCsv () throws IOException {
+		StringBuilder csv = new StringBuilder(SAMPLES * 64);
+		ImuBlockFormat.appendCsv(block, floatEncoding, ImuBlockFormat.SHORTEST_FLOAT_TEXT, csv);
+		return csv.length();
+	}
+}
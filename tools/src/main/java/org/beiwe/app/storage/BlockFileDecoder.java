@@ -0,0 +1,171 @@
+package org.beiwe.app.storage;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**Reference decoder for encrypted data files, both the legacy line-per-row format and the v2 block
+ * format described in BlockFileFormat.  IMU binary files (see ImuBlockFormat) are converted back to the CSV
+ * the legacy format would have held.  This is plain Java that lives in the tools module, not in the app, it
+ * exists so that the server side implementation can be validated against files pulled off of a device.
+ * 
+ * Command line usage:
+ *   ./gradlew :tools:run --args="private_key.pem data_file.csv [data_file.csv ...]"
+ * or, from the tools module's build output,
+ *   java org.beiwe.app.storage.BlockFileDecoder private_key.pem data_file.csv [data_file.csv ...]
+ * The private key must be an unencrypted PKCS#8 key, a PKCS#1 key can be converted with
+ *   openssl pkcs8 -topk8 -nocrypt -in key.pem -out private_key.pem
+ * The decrypted CSV is written to stdout. */
+public class BlockFileDecoder {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**Decrypts a data file and writes its plaintext to the provided Writer.
+	 * @param in the raw contents of a data file.
+	 * @param rsaKey the private half of the study's RSA key pair.
+	 * @param out destination for the decrypted CSV. */
+	public static void decode (InputStream in, PrivateKey rsaKey, Writer out) throws IOException, GeneralSecurityException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+		String keyLine = reader.readLine();
+		if (keyLine == null) {
+			return;
+		}
+		byte[] aesKey = decryptKeyLine(keyLine, rsaKey);
+		
+		String line = reader.readLine();
+		boolean blockFormat = BlockFileFormat.isVersionLine(line);
+		boolean compressed = false;
+		String imuFloatText = null;
+		String imuFloatEncoding = null;
+		if (blockFormat) {
+			Map<String, String> options = BlockFileFormat.parseOptions(line);
+			// in a key session the first line holds the session key, the file key is derived from it.
+			String salt = options.get(BlockFileFormat.KEY_SALT_OPTION);
+			if (salt != null) {
+				aesKey = BlockFileFormat.deriveFileKey(aesKey, fromBase64(salt));
+			}
+			String compression = options.get(BlockFileFormat.COMPRESSION_OPTION);
+			if (compression != null && !compression.equals(BlockFileFormat.DEFLATE_COMPRESSION)) {
+				throw new IOException("unknown block compression: " + compression);
+			}
+			compressed = compression != null;
+			String encoding = options.get(ImuBlockFormat.ENCODING_OPTION);
+			if (encoding != null) {
+				if (!encoding.equals(ImuBlockFormat.IMU_BINARY_ENCODING)) {
+					throw new IOException("unknown block encoding: " + encoding);
+				}
+				imuFloatEncoding = ImuBlockFormat.floatEncodingOfSchema(options.get(ImuBlockFormat.SCHEMA_OPTION));
+				imuFloatText = options.get(ImuBlockFormat.FLOAT_TEXT_OPTION);
+			}
+			line = reader.readLine();
+		}
+		boolean firstBlock = true;
+		for (; line != null; line = reader.readLine()) {
+			if (line.length() == 0) {
+				continue;
+			}
+			byte[] plaintext = decryptLine(line, aesKey);
+			if (compressed) {
+				plaintext = BlockFileFormat.inflate(plaintext);
+			}
+			// the first block of an IMU binary file is the CSV header, every later block is binary.
+			if (imuFloatText != null && !firstBlock) {
+				StringBuilder csv = new StringBuilder(plaintext.length * 4);
+				ImuBlockFormat.appendCsv(plaintext, imuFloatEncoding, imuFloatText, csv);
+				out.write(csv.toString());
+				continue;
+			}
+			firstBlock = false;
+			out.write(new String(plaintext, UTF8));
+			// legacy lines are one row without its newline, v2 blocks carry their own newlines.
+			if (!blockFormat) {
+				out.write('\n');
+			}
+		}
+		out.flush();
+	}
+	
+	/**Recovers the AES key from the first line of a data file.
+	 * The app encrypts the Base64 encoding of the key with unpadded RSA, so leading zero bytes are dropped. */
+	public static byte[] decryptKeyLine (String keyLine, PrivateKey rsaKey) throws GeneralSecurityException {
+		Cipher rsaCipher = Cipher.getInstance("RSA/ECB/NoPadding");
+		rsaCipher.init(Cipher.DECRYPT_MODE, rsaKey);
+		byte[] decrypted = rsaCipher.doFinal(fromBase64(keyLine));
+		int start = 0;
+		while (start < decrypted.length && decrypted[start] == 0) {
+			start++;
+		}
+		return fromBase64(new String(Arrays.copyOfRange(decrypted, start, decrypted.length), UTF8));
+	}
+	
+	/** Decrypts a single "IV:ciphertext" line. */
+	public static byte[] decryptLine (String line, byte[] aesKey) throws GeneralSecurityException {
+		int colon = line.indexOf(':');
+		if (colon < 0) {
+			throw new GeneralSecurityException("malformed encrypted line, no IV separator: " + line);
+		}
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"),
+				new IvParameterSpec(fromBase64(line.substring(0, colon))));
+		return cipher.doFinal(fromBase64(line.substring(colon + 1)));
+	}
+	
+	/** Reads a PKCS#8 RSA private key, either PEM or bare Base64. */
+	public static PrivateKey readPrivateKey (String keyText) throws GeneralSecurityException {
+		String base64 = keyText.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+		return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(base64)));
+	}
+	
+	/** The app writes url-safe Base64, but be lenient about the alphabet. */
+	private static byte[] fromBase64 (String data) {
+		return Base64.getUrlDecoder().decode(data.trim().replace('+', '-').replace('/', '_'));
+	}
+	
+	public static void main (String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("usage: BlockFileDecoder private_key.pem data_file [data_file ...]");
+			System.exit(1);
+		}
+		PrivateKey rsaKey = readPrivateKey(new String(readAll(new FileInputStream(args[0])), UTF8));
+		Writer out = new OutputStreamWriter(System.out, UTF8);
+		for (int i = 1; i < args.length; i++) {
+			InputStream in = new FileInputStream(args[i]);
+			try {
+				decode(in, rsaKey, out);
+			} finally {
+				in.close();
+			}
+		}
+	}
+	
+	private static byte[] readAll (InputStream in) throws IOException {
+		try {
+			byte[] buffer = new byte[4096];
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				data.write(buffer, 0, count);
+			}
+			return data.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}